@@ -0,0 +1,156 @@
+package core;
+
+/**
+    The FramePacer class keeps the game loop from running faster
+    than a target frame rate. Each call to sync() waits until the
+    next frame is due: it sleeps for most of the remaining time,
+    then spins for the last couple of milliseconds, since
+    Thread.sleep() is only accurate to a millisecond or so on
+    most systems.
+    <p>When the game is idle (for example, the window doesn't
+    have the focus) a lower frame rate is used.
+    <p>The FramePacer also measures the frame rate it achieves
+    and the jitter (standard deviation) of the frame times,
+    once every second.
+*/
+public class FramePacer {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    // time before the deadline that sleeping stops and
+    // spinning starts
+    private static final long SPIN_TIME = 2 * NANOS_PER_MILLI;
+
+    private long frameTime;
+    private long idleFrameTime;
+    private long nextFrame;
+
+    // statistics for the current one-second window
+    private long lastSync;
+    private long windowStart;
+    private int windowFrames;
+    private double windowSum;
+    private double windowSumSquares;
+
+    private volatile float fps;
+    private volatile float jitter;
+
+    /**
+        Creates a new FramePacer with the specified target and
+        idle frame rates.
+    */
+    public FramePacer(int targetFps, int idleFps) {
+        setTargetFps(targetFps);
+        setIdleFps(idleFps);
+    }
+
+    public void setTargetFps(int fps) {
+        frameTime = NANOS_PER_SECOND / Math.max(1, fps);
+    }
+
+    public void setIdleFps(int fps) {
+        idleFrameTime = NANOS_PER_SECOND / Math.max(1, fps);
+    }
+
+    public int getTargetFps() {
+        return (int)(NANOS_PER_SECOND / frameTime);
+    }
+
+    public int getIdleFps() {
+        return (int)(NANOS_PER_SECOND / idleFrameTime);
+    }
+
+    /**
+        Waits until the next frame is due.
+    */
+    public void sync(boolean idle) {
+        long period = idle ? idleFrameTime : frameTime;
+        long now = System.nanoTime();
+
+        if (nextFrame == 0 || now - nextFrame > period) {
+            // first frame, or more than a frame behind: don't
+            // try to catch up, just start pacing from now
+            nextFrame = now + period;
+        }
+        else {
+            waitUntil(nextFrame);
+            nextFrame += period;
+        }
+
+        updateStats(System.nanoTime());
+    }
+
+    /**
+        Sleeps, then spins, until the specified System.nanoTime()
+        value. Subclasses can override this to use a different
+        waiting strategy.
+    */
+    protected void waitUntil(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        while (remaining > SPIN_TIME) {
+            try {
+                Thread.sleep((remaining - SPIN_TIME) /
+                    NANOS_PER_MILLI);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            remaining = deadline - System.nanoTime();
+        }
+        while (deadline - System.nanoTime() > 0) {
+            Thread.yield();
+        }
+    }
+
+    private void updateStats(long now) {
+        if (lastSync != 0) {
+            double interval = (double)(now - lastSync) /
+                NANOS_PER_MILLI;
+            windowFrames++;
+            windowSum += interval;
+            windowSumSquares += interval * interval;
+        }
+        else {
+            windowStart = now;
+        }
+        lastSync = now;
+
+        if (now - windowStart >= NANOS_PER_SECOND &&
+            windowFrames > 0)
+        {
+            double mean = windowSum / windowFrames;
+            double variance = windowSumSquares / windowFrames -
+                mean * mean;
+            fps = (float)(windowFrames * (double)NANOS_PER_SECOND /
+                (now - windowStart));
+            jitter = (float)Math.sqrt(Math.max(0, variance));
+
+            windowStart = now;
+            windowFrames = 0;
+            windowSum = 0;
+            windowSumSquares = 0;
+        }
+    }
+
+    /**
+        Gets the frame rate achieved over the last full second.
+    */
+    public float getFps() {
+        return fps;
+    }
+
+    /**
+        Gets the standard deviation, in milliseconds, of the frame
+        times over the last full second.
+    */
+    public float getJitter() {
+        return jitter;
+    }
+
+    public String toString() {
+        return Math.round(fps * 10) / 10f + " fps, " +
+            Math.round(jitter * 100) / 100f + " ms jitter";
+    }
+}
@@ -0,0 +1,146 @@
+package core;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import util.LatencyHistogram;
+
+/**
+    The FrameStats class records how long each phase of a frame
+    takes, and publishes the median, 99th percentile and maximum
+    of each phase through JMX (as "tilegame:type=FrameStats"),
+    so frame time can be watched with jconsole or any other JMX
+    client while the game runs.
+    <p>The phases are timed with System.nanoTime() by the game
+    loop. Note the update phase includes the input phase.
+*/
+public class FrameStats implements FrameStatsMBean {
+
+    public static final int INPUT = 0;
+    public static final int UPDATE = 1;
+    public static final int RENDER = 2;
+    public static final int FLIP = 3;
+    public static final int SYNC = 4;
+
+    private static final int NUM_PHASES = 5;
+
+    private static final String OBJECT_NAME =
+        "tilegame:type=FrameStats";
+
+    private LatencyHistogram[] phases;
+    private volatile long frameCount;
+
+    public FrameStats() {
+        phases = new LatencyHistogram[NUM_PHASES];
+        for (int i=0; i<NUM_PHASES; i++) {
+            phases[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+        Registers this FrameStats with the platform MBeanServer.
+        Returns false if it couldn't be registered.
+    */
+    public boolean register() {
+        try {
+            MBeanServer server =
+                ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            return true;
+        }
+        catch (JMException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+        Records the duration, in nanoseconds, of a phase.
+    */
+    public void record(int phase, long nanos) {
+        phases[phase].record(nanos);
+    }
+
+    /**
+        Signals the end of a frame.
+    */
+    public void endFrame() {
+        frameCount++;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getInputP50() {
+        return phases[INPUT].getPercentile(50);
+    }
+
+    public long getInputP99() {
+        return phases[INPUT].getPercentile(99);
+    }
+
+    public long getInputMax() {
+        return phases[INPUT].getMax();
+    }
+
+    public long getUpdateP50() {
+        return phases[UPDATE].getPercentile(50);
+    }
+
+    public long getUpdateP99() {
+        return phases[UPDATE].getPercentile(99);
+    }
+
+    public long getUpdateMax() {
+        return phases[UPDATE].getMax();
+    }
+
+    public long getRenderP50() {
+        return phases[RENDER].getPercentile(50);
+    }
+
+    public long getRenderP99() {
+        return phases[RENDER].getPercentile(99);
+    }
+
+    public long getRenderMax() {
+        return phases[RENDER].getMax();
+    }
+
+    public long getFlipP50() {
+        return phases[FLIP].getPercentile(50);
+    }
+
+    public long getFlipP99() {
+        return phases[FLIP].getPercentile(99);
+    }
+
+    public long getFlipMax() {
+        return phases[FLIP].getMax();
+    }
+
+    public long getSyncP50() {
+        return phases[SYNC].getPercentile(50);
+    }
+
+    public long getSyncP99() {
+        return phases[SYNC].getPercentile(99);
+    }
+
+    public long getSyncMax() {
+        return phases[SYNC].getMax();
+    }
+
+    public void reset() {
+        for (int i=0; i<NUM_PHASES; i++) {
+            phases[i].reset();
+        }
+        frameCount = 0;
+    }
+}
@@ -0,0 +1,32 @@
+package core;
+
+/**
+    The management interface for FrameStats. All times are in
+    microseconds.
+*/
+public interface FrameStatsMBean {
+
+    public long getFrameCount();
+
+    public long getInputP50();
+    public long getInputP99();
+    public long getInputMax();
+
+    public long getUpdateP50();
+    public long getUpdateP99();
+    public long getUpdateMax();
+
+    public long getRenderP50();
+    public long getRenderP99();
+    public long getRenderMax();
+
+    public long getFlipP50();
+    public long getFlipP99();
+    public long getFlipMax();
+
+    public long getSyncP50();
+    public long getSyncP99();
+    public long getSyncMax();
+
+    public void reset();
+}
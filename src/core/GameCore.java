@@ -1,6 +1,7 @@
 package core;
 
 import java.awt.*;
+import java.util.concurrent.locks.LockSupport;
 import javax.swing.ImageIcon;
 import graphics.ScreenManager;
 
@@ -20,9 +21,28 @@ public abstract class GameCore {
         new DisplayMode(1024, 768, 24, 0),
     };
 
-    private boolean isRunning;
+    private volatile boolean isRunning;
     protected ScreenManager screen;
 
+    // fixed timestep settings. A tick rate of 0 passes the raw
+    // frame time straight to update().
+    private int ticksPerSecond;
+    private int maxCatchUpSteps = 5;
+
+    // runs update() on a separate simulation thread
+    private boolean threadedRendering;
+    private volatile long publishTime;
+
+    // limits the frame rate; null runs as fast as possible
+    private FramePacer framePacer;
+
+    // headless mode runs only the simulation, with no display
+    private boolean headless;
+    private long maxUpdates;
+
+    // frame phase timings, published over JMX
+    private FrameStats frameStats = new FrameStats();
+
     public void stop() {
         isRunning = false;
     }
@@ -33,7 +53,9 @@ public abstract class GameCore {
             gameLoop();      
         }
         finally {
-            screen.restoreScreen();
+            if (screen != null) {
+                screen.restoreScreen();
+            }
             lazilyExit();
         }
     }
@@ -54,7 +76,29 @@ public abstract class GameCore {
         thread.start();
     }
 
+    /**
+        Sets whether the game runs without a display. In headless
+        mode, no ScreenManager is created, nothing is drawn, and
+        update() is called back to back with a fixed step until
+        the game is stopped or maxUpdates steps have run (0 for
+        no limit).
+    */
+    public void setHeadless(boolean headless, long maxUpdates) {
+        this.headless = headless;
+        this.maxUpdates = maxUpdates;
+    }
+
+    public boolean isHeadless() {
+        return headless;
+    }
+
     public void init() {
+        frameStats.register();
+        if (headless) {
+            isRunning = true;
+            return;
+        }
+
         screen = new ScreenManager();
         DisplayMode displayMode =
             screen.findFirstCompatibleMode(POSSIBLE_MODES);
@@ -73,7 +117,266 @@ public abstract class GameCore {
         return new ImageIcon(fileName).getImage();
     }
 
+    /**
+        Runs update() at a constant rate of ticksPerSecond, and
+        at most maxCatchUpSteps times per frame. The step is
+        rounded to a whole number of milliseconds. Draw calls
+        receive an interpolation alpha between the last two
+        simulation steps. A tick rate of 0 turns the fixed
+        timestep off.
+    */
+    public void setFixedTimestep(int ticksPerSecond,
+        int maxCatchUpSteps)
+    {
+        this.ticksPerSecond = Math.max(0, ticksPerSecond);
+        this.maxCatchUpSteps = Math.max(1, maxCatchUpSteps);
+    }
+
+    public int getTicksPerSecond() {
+        return ticksPerSecond;
+    }
+
+    public int getMaxCatchUpSteps() {
+        return maxCatchUpSteps;
+    }
+
+    /**
+        Sets the FramePacer used to limit the frame rate, or null
+        to run as fast as possible.
+    */
+    public void setFramePacer(FramePacer framePacer) {
+        this.framePacer = framePacer;
+    }
+
+    public FramePacer getFramePacer() {
+        return framePacer;
+    }
+
+    /**
+        Returns true if the game doesn't need the full frame rate,
+        for example, when the window doesn't have the focus.
+        Subclasses should override this method.
+    */
+    public boolean isIdle() {
+        return false;
+    }
+
+    /**
+        Gets the FrameStats that record how long each phase of a
+        frame takes.
+    */
+    public FrameStats getFrameStats() {
+        return frameStats;
+    }
+
+    private void timedUpdate(long elapsedTime) {
+        long startTime = System.nanoTime();
+        update(elapsedTime);
+        frameStats.record(FrameStats.UPDATE,
+            System.nanoTime() - startTime);
+    }
+
+    private void drawFrame(float alpha) {
+        long time = System.nanoTime();
+        Graphics2D g = screen.getGraphics();
+        draw(g, alpha);
+        g.dispose();
+        long now = System.nanoTime();
+        frameStats.record(FrameStats.RENDER, now - time);
+
+        time = now;
+        screen.show();
+        now = System.nanoTime();
+        frameStats.record(FrameStats.FLIP, now - time);
+
+        time = now;
+        screen.sync();
+        now = System.nanoTime();
+        frameStats.record(FrameStats.SYNC, now - time);
+
+        frameStats.endFrame();
+    }
+
+    private void syncFrame() {
+        if (framePacer != null) {
+            framePacer.sync(isIdle());
+        }
+    }
+
+    /**
+        Sets whether update() runs on a separate simulation thread
+        while the game thread only draws. The simulation thread
+        calls publishFrame() after its updates, and draw() is
+        called with an alpha value based on how long ago the last
+        frame was published. Threaded rendering always uses a
+        fixed timestep.
+    */
+    public void setThreadedRendering(boolean threadedRendering) {
+        this.threadedRendering = threadedRendering;
+    }
+
+    public boolean isThreadedRendering() {
+        return threadedRendering;
+    }
+
+    /**
+        Called on the simulation thread, when rendering is
+        threaded, after each batch of update() steps. Subclasses
+        should override this method to hand the updated state over
+        to the render thread.
+    */
+    public void publishFrame() {
+        // do nothing
+    }
+
+    /**
+        Gets the length of a simulation step, in milliseconds,
+        for loops that need a fixed step. Uses 10ms if no tick
+        rate is set.
+    */
+    private long getStepMillis() {
+        return (ticksPerSecond > 0) ?
+            Math.max(1, 1000 / ticksPerSecond) : 10;
+    }
+
     public void gameLoop() {
+        if (headless) {
+            headlessLoop();
+        }
+        else if (threadedRendering) {
+            threadedLoop();
+        }
+        else if (ticksPerSecond > 0) {
+            fixedTimestepLoop();
+        }
+        else {
+            variableTimestepLoop();
+        }
+    }
+
+    private void fixedTimestepLoop() {
+        long stepMillis = getStepMillis();
+        long stepNanos = stepMillis * 1000000L;
+        long accumulator = 0;
+        long currTime = System.nanoTime();
+
+        while (isRunning) {
+            long now = System.nanoTime();
+            accumulator += now - currTime;
+            currTime = now;
+
+            // update in fixed steps
+            int steps = 0;
+            while (isRunning && accumulator >= stepNanos &&
+                steps < maxCatchUpSteps)
+            {
+                timedUpdate(stepMillis);
+                accumulator -= stepNanos;
+                steps++;
+            }
+
+            // too far behind; drop the time we can't catch up on
+            // instead of spiraling into ever longer frames
+            if (accumulator >= stepNanos) {
+                accumulator %= stepNanos;
+            }
+
+            // draw the screen between the last two steps
+            drawFrame((float)accumulator / stepNanos);
+
+            syncFrame();
+        }
+    }
+
+    private void threadedLoop() {
+        final long stepMillis = getStepMillis();
+        long stepNanos = stepMillis * 1000000L;
+
+        Thread simulation = new Thread("Simulation") {
+            public void run() {
+                try {
+                    simulationLoop(stepMillis);
+                }
+                finally {
+                    // stop drawing if the simulation fails
+                    GameCore.this.stop();
+                }
+            }
+        };
+        simulation.setDaemon(true);
+        publishTime = System.nanoTime();
+        simulation.start();
+
+        // draw the latest published frame
+        while (isRunning) {
+            long sincePublish = System.nanoTime() - publishTime;
+            drawFrame(Math.min(1, (float)sincePublish / stepNanos));
+            syncFrame();
+        }
+
+        try {
+            simulation.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void simulationLoop(long stepMillis) {
+        long stepNanos = stepMillis * 1000000L;
+        long accumulator = 0;
+        long currTime = System.nanoTime();
+
+        while (isRunning) {
+            long now = System.nanoTime();
+            accumulator += now - currTime;
+            currTime = now;
+
+            // update in fixed steps
+            int steps = 0;
+            while (isRunning && accumulator >= stepNanos &&
+                steps < maxCatchUpSteps)
+            {
+                timedUpdate(stepMillis);
+                accumulator -= stepNanos;
+                steps++;
+            }
+            if (accumulator >= stepNanos) {
+                accumulator %= stepNanos;
+            }
+
+            if (steps > 0) {
+                publishFrame();
+                publishTime = System.nanoTime();
+            }
+
+            // wait for the next step
+            LockSupport.parkNanos(stepNanos - accumulator);
+        }
+    }
+
+    private void headlessLoop() {
+        long stepMillis = getStepMillis();
+        long updates = 0;
+        long startTime = System.nanoTime();
+
+        while (isRunning && (maxUpdates <= 0 || updates < maxUpdates)) {
+            timedUpdate(stepMillis);
+            frameStats.endFrame();
+            updates++;
+        }
+        if (isRunning) {
+            // ran out of steps
+            stop();
+        }
+
+        long time = Math.max(1, System.nanoTime() - startTime);
+        System.out.println("Simulated " + updates + " steps in " +
+            (time / 1000000) + " ms (" +
+            Math.round(updates * 1e9 / time) + " steps/s)");
+    }
+
+    private void variableTimestepLoop() {
         long startTime = System.currentTimeMillis();
         long currTime = startTime;
 
@@ -83,19 +386,13 @@ public abstract class GameCore {
             currTime += elapsedTime;
 
             // update
-            update(elapsedTime);
+            timedUpdate(elapsedTime);
 
             // draw the screen
-            Graphics2D g = screen.getGraphics();
-            draw(g);
-            g.dispose();
-            screen.update();
-
-            // don't take a nap! run as fast as possible
-            /*try {
-                Thread.sleep(20);
-            }
-            catch (InterruptedException ex) { }*/
+            drawFrame(1);
+
+            // wait for the next frame, if a FramePacer is set
+            syncFrame();
         }
     }
 
@@ -104,4 +401,13 @@ public abstract class GameCore {
     }
 
     public abstract void draw(Graphics2D g);
+
+    /**
+        Draws the screen when a fixed timestep is used. The alpha
+        value (0 to 1) is how far the current time is between the
+        previous and the next simulation step.
+    */
+    public void draw(Graphics2D g, float alpha) {
+        draw(g);
+    }
 }
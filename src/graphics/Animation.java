@@ -1,36 +1,77 @@
 package graphics;
 
 import java.awt.Image;
-import java.util.ArrayList;
-
+import java.util.Map;
+
+/**
+    The Animation class manages a series of images (frames) and
+    the amount of time to display each frame.
+    <p>The frames are kept in arrays that are shared by all the
+    clones of an Animation and aren't changed by addFrame(),
+    which copies them. So cloning an Animation only creates the
+    object holding the current frame and time. replaceImages()
+    is the exception: it changes the frames of every clone.
+*/
 public class Animation {
 
-    private ArrayList frames;
+    private static final Image[] NO_IMAGES = new Image[0];
+    private static final long[] NO_TIMES = new long[0];
+
+    // frame images, and the time each frame ends
+    private Image[] images;
+    private long[] endTimes;
     private int currFrameIndex;
     private long animTime;
     private long totalDuration;
 
 
     public Animation() {
-        this(new ArrayList(), 0);
+        this(NO_IMAGES, NO_TIMES, 0);
     }
 
 
-    private Animation(ArrayList frames, long totalDuration) {
-        this.frames = frames;
+    private Animation(Image[] images, long[] endTimes,
+        long totalDuration)
+    {
+        this.images = images;
+        this.endTimes = endTimes;
         this.totalDuration = totalDuration;
         start();
     }
 
     public Object clone() {
-        return new Animation(frames, totalDuration);
+        return new Animation(images, endTimes, totalDuration);
     }
 
     public synchronized void addFrame(Image image,
         long duration)
     {
         totalDuration += duration;
-        frames.add(new AnimFrame(image, totalDuration));
+        int count = images.length;
+        Image[] newImages = new Image[count + 1];
+        long[] newEndTimes = new long[count + 1];
+        System.arraycopy(images, 0, newImages, 0, count);
+        System.arraycopy(endTimes, 0, newEndTimes, 0, count);
+        newImages[count] = image;
+        newEndTimes[count] = totalDuration;
+        images = newImages;
+        endTimes = newEndTimes;
+    }
+
+    /**
+        Replaces the frame images that are keys of the specified
+        Map with their values, in this Animation and all of its
+        clones. Used when images are converted for a new display.
+    */
+    public synchronized void replaceImages(
+        Map<Image, Image> replacements)
+    {
+        for (int i=0; i<images.length; i++) {
+            Image image = replacements.get(images[i]);
+            if (image != null) {
+                images[i] = image;
+            }
+        }
     }
 
     public synchronized void start() {
@@ -39,7 +80,7 @@ public class Animation {
     }
 
     public synchronized void update(long elapsedTime) {
-        if (frames.size() > 1) {
+        if (images.length > 1) {
             animTime += elapsedTime;
 
             if (animTime >= totalDuration) {
@@ -47,7 +88,7 @@ public class Animation {
                 currFrameIndex = 0;
             }
 
-            while (animTime > getFrame(currFrameIndex).endTime) {
+            while (animTime > endTimes[currFrameIndex]) {
                 currFrameIndex++;
             }
         }
@@ -55,28 +96,35 @@ public class Animation {
 
 
     public synchronized Image getImage() {
-        if (frames.size() == 0) {
+        if (images.length == 0) {
             return null;
         }
         else {
-            return getFrame(currFrameIndex).image;
+            return images[currFrameIndex];
         }
     }
 
 
-    private AnimFrame getFrame(int i) {
-        return (AnimFrame)frames.get(i);
+    /**
+        Gets the width of the widest frame.
+    */
+    public synchronized int getMaxWidth() {
+        int maxWidth = 0;
+        for (int i=0; i<images.length; i++) {
+            maxWidth = Math.max(maxWidth, images[i].getWidth(null));
+        }
+        return maxWidth;
     }
 
 
-    private class AnimFrame {
-
-        Image image;
-        long endTime;
-
-        public AnimFrame(Image image, long endTime) {
-            this.image = image;
-            this.endTime = endTime;
+    /**
+        Gets the height of the tallest frame.
+    */
+    public synchronized int getMaxHeight() {
+        int maxHeight = 0;
+        for (int i=0; i<images.length; i++) {
+            maxHeight = Math.max(maxHeight, images[i].getHeight(null));
         }
+        return maxHeight;
     }
 }
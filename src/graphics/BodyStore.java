@@ -0,0 +1,164 @@
+package graphics;
+
+import java.util.Arrays;
+
+/**
+    The BodyStore class keeps the positions and velocities of a
+    set of Sprites in parallel arrays (a "struct of arrays")
+    instead of in each Sprite. A Sprite added to a BodyStore reads
+    and writes its position and velocity through the store, so the
+    Sprite becomes a view of one slot in the arrays.
+    <p>Keeping the values together lets integrate() apply gravity
+    and velocity to every body in a few tight loops over
+    primitive arrays, which the JIT compiler can vectorize.
+*/
+public class BodyStore {
+
+    /**
+        Flag for bodies that are pulled down by gravity.
+    */
+    public static final int FLAG_GRAVITY = 1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // read and written directly by Sprite
+    float[] x;
+    float[] y;
+    float[] dx;
+    float[] dy;
+
+    private int[] flags;
+    private float[] targetX;
+    private float[] targetY;
+    private Sprite[] sprites;
+    private int count;
+
+    public BodyStore() {
+        x = new float[INITIAL_CAPACITY];
+        y = new float[INITIAL_CAPACITY];
+        dx = new float[INITIAL_CAPACITY];
+        dy = new float[INITIAL_CAPACITY];
+        flags = new int[INITIAL_CAPACITY];
+        targetX = new float[INITIAL_CAPACITY];
+        targetY = new float[INITIAL_CAPACITY];
+        sprites = new Sprite[INITIAL_CAPACITY];
+    }
+
+    /**
+        Gets the number of bodies in this store.
+    */
+    public int size() {
+        return count;
+    }
+
+    /**
+        Moves a Sprite's position and velocity into this store.
+        The Sprite must not be in another BodyStore.
+    */
+    public void add(Sprite sprite) {
+        if (count == sprites.length) {
+            grow();
+        }
+        int i = count++;
+        x[i] = sprite.getX();
+        y[i] = sprite.getY();
+        dx[i] = sprite.getVelocityX();
+        dy[i] = sprite.getVelocityY();
+        flags[i] = sprite.getBodyFlags();
+        targetX[i] = x[i];
+        targetY[i] = y[i];
+        sprites[i] = sprite;
+        sprite.setBody(this, i);
+    }
+
+    /**
+        Moves a Sprite's position and velocity back into the
+        Sprite.
+    */
+    public void remove(Sprite sprite) {
+        if (sprite.getBodyStore() != this) {
+            return;
+        }
+        int i = sprite.getBodySlot();
+        sprite.setBody(null, -1);
+        sprite.setX(x[i]);
+        sprite.setY(y[i]);
+        sprite.setVelocityX(dx[i]);
+        sprite.setVelocityY(dy[i]);
+
+        // move the last body into the gap
+        int last = --count;
+        if (i != last) {
+            x[i] = x[last];
+            y[i] = y[last];
+            dx[i] = dx[last];
+            dy[i] = dy[last];
+            flags[i] = flags[last];
+            targetX[i] = targetX[last];
+            targetY[i] = targetY[last];
+            sprites[i] = sprites[last];
+            sprites[i].setBody(this, i);
+        }
+        sprites[last] = null;
+    }
+
+    /**
+        Updates the flags of a Sprite in this store, for example
+        after it stopped flying.
+    */
+    public void setFlags(Sprite sprite, int flags) {
+        this.flags[sprite.getBodySlot()] = flags;
+    }
+
+    /**
+        Applies gravity to the bodies with FLAG_GRAVITY, then
+        computes where every body would be after moving for the
+        specified time. The bodies don't move: the caller resolves
+        collisions starting from getTargetX() and getTargetY().
+    */
+    public void integrate(float gravity, long elapsedTime) {
+        float time = elapsedTime;
+        float fall = gravity * elapsedTime;
+        int count = this.count;
+
+        // FLAG_GRAVITY is 1, so this adds either fall or nothing,
+        // without a branch
+        for (int i=0; i<count; i++) {
+            dy[i] += fall * (flags[i] & FLAG_GRAVITY);
+        }
+        for (int i=0; i<count; i++) {
+            targetX[i] = x[i] + dx[i] * time;
+        }
+        for (int i=0; i<count; i++) {
+            targetY[i] = y[i] + dy[i] * time;
+        }
+    }
+
+    /**
+        Gets the x position a Sprite would move to, as computed by
+        the last call to integrate().
+    */
+    public float getTargetX(Sprite sprite) {
+        return targetX[sprite.getBodySlot()];
+    }
+
+    /**
+        Gets the y position a Sprite would move to, as computed by
+        the last call to integrate().
+    */
+    public float getTargetY(Sprite sprite) {
+        return targetY[sprite.getBodySlot()];
+    }
+
+    private void grow() {
+        int capacity = sprites.length * 2;
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        dx = Arrays.copyOf(dx, capacity);
+        dy = Arrays.copyOf(dy, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        targetX = Arrays.copyOf(targetX, capacity);
+        targetY = Arrays.copyOf(targetY, capacity);
+        sprites = Arrays.copyOf(sprites, capacity);
+    }
+}
@@ -0,0 +1,91 @@
+package graphics;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+    The ImageConverter class converts images to the pixel format
+    of a GraphicsConfiguration, so drawing them doesn't convert
+    pixels on the fly, and lets Java2D keep an accelerated copy of
+    them in video memory (a managed image).
+    <p>The transparency of the new image is found from the alpha
+    channel: OPAQUE if every pixel is opaque, BITMASK if every
+    pixel is either opaque or fully transparent, and TRANSLUCENT
+    otherwise. BITMASK and OPAQUE images are faster to draw on
+    most pipelines.
+*/
+public class ImageConverter {
+
+    private ImageConverter() { }
+
+    /**
+        Finds the Transparency (OPAQUE, BITMASK or TRANSLUCENT) of
+        an image from its alpha channel.
+    */
+    public static int getTransparency(Image image) {
+        BufferedImage buffered = toBufferedImage(image);
+        if (!buffered.getColorModel().hasAlpha()) {
+            return Transparency.OPAQUE;
+        }
+
+        int width = buffered.getWidth();
+        int height = buffered.getHeight();
+        int[] row = new int[width];
+        int transparency = Transparency.OPAQUE;
+        for (int y=0; y<height; y++) {
+            buffered.getRGB(0, y, width, 1, row, 0, width);
+            for (int x=0; x<width; x++) {
+                int alpha = row[x] >>> 24;
+                if (alpha == 0) {
+                    transparency = Transparency.BITMASK;
+                }
+                else if (alpha != 0xff) {
+                    return Transparency.TRANSLUCENT;
+                }
+            }
+        }
+        return transparency;
+    }
+
+    /**
+        Creates a copy of an image in the format of the specified
+        GraphicsConfiguration, with the transparency found by
+        getTransparency().
+    */
+    public static BufferedImage toCompatible(Image image,
+        GraphicsConfiguration gc)
+    {
+        return toCompatible(image, gc, getTransparency(image));
+    }
+
+    /**
+        Creates a copy of an image in the format of the specified
+        GraphicsConfiguration, with the specified Transparency.
+    */
+    public static BufferedImage toCompatible(Image image,
+        GraphicsConfiguration gc, int transparency)
+    {
+        BufferedImage newImage = gc.createCompatibleImage(
+            image.getWidth(null), image.getHeight(null),
+            transparency);
+        Graphics2D g = newImage.createGraphics();
+        g.setComposite(AlphaComposite.Src);
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return newImage;
+    }
+
+    private static BufferedImage toBufferedImage(Image image) {
+        if (image instanceof BufferedImage) {
+            return (BufferedImage)image;
+        }
+        BufferedImage buffered = new BufferedImage(
+            Math.max(1, image.getWidth(null)),
+            Math.max(1, image.getHeight(null)),
+            BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = buffered.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return buffered;
+    }
+}
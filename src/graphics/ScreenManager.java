@@ -122,6 +122,14 @@ public class ScreenManager {
     }
 
     public void update() {
+        show();
+        sync();
+    }
+
+    /**
+        Shows the next buffer of the BufferStrategy.
+    */
+    public void show() {
         Window window = device.getFullScreenWindow();
         if (window != null) {
             BufferStrategy strategy = window.getBufferStrategy();
@@ -129,8 +137,13 @@ public class ScreenManager {
                 strategy.show();
             }
         }
-        // Sync the display on some systems.
-        // (on Linux, this fixes event queue problems)
+    }
+
+    /**
+        Syncs the display on some systems.
+        (on Linux, this fixes event queue problems)
+    */
+    public void sync() {
         Toolkit.getDefaultToolkit().sync();
     }
 
@@ -11,31 +11,82 @@ public class Sprite {
     // velocity (pixels per millisecond)
     private float dx;
     private float dy;
+    // position before the last fixed timestep update, used to
+    // interpolate the drawing position
+    private float lastX;
+    private float lastY;
+    // handle given by the container that holds this Sprite, or
+    // -1 if it isn't in one
+    private int handle = -1;
+    // the BodyStore holding the position and velocity, if any
+    private BodyStore bodies;
+    private int bodySlot = -1;
 
     public Sprite(Animation anim) {
         this.anim = anim;
     }
 
     public void update(long elapsedTime) {
-        x += dx * elapsedTime;
-        y += dy * elapsedTime;
+        setX(getX() + getVelocityX() * elapsedTime);
+        setY(getY() + getVelocityY() * elapsedTime);
         anim.update(elapsedTime);
     }
 
     public float getX() {
-        return x;
+        return (bodies != null) ? bodies.x[bodySlot] : x;
     }
 
     public float getY() {
-        return y;
+        return (bodies != null) ? bodies.y[bodySlot] : y;
     }
 
     public void setX(float x) {
-        this.x = x;
+        if (bodies != null) {
+            bodies.x[bodySlot] = x;
+        }
+        else {
+            this.x = x;
+        }
     }
 
     public void setY(float y) {
-        this.y = y;
+        if (bodies != null) {
+            bodies.y[bodySlot] = y;
+        }
+        else {
+            this.y = y;
+        }
+    }
+
+    /**
+        Remembers the current position as the start of the next
+        simulation step.
+    */
+    public void storePosition() {
+        lastX = getX();
+        lastY = getY();
+    }
+
+    public float getInterpolatedX(float alpha) {
+        return lastX + (getX() - lastX) * alpha;
+    }
+
+    public float getInterpolatedY(float alpha) {
+        return lastY + (getY() - lastY) * alpha;
+    }
+
+    /**
+        Puts this Sprite back the way it was when created, so it
+        can be reused. It must not be in a BodyStore.
+    */
+    public void reset() {
+        x = 0;
+        y = 0;
+        dx = 0;
+        dy = 0;
+        lastX = 0;
+        lastY = 0;
+        anim.start();
     }
 
     public int getWidth() {
@@ -45,27 +96,94 @@ public class Sprite {
     public int getHeight() {
         return anim.getImage().getHeight(null);
     }
+
+    /**
+        Gets the width of the widest frame this Sprite can show.
+    */
+    public int getMaxWidth() {
+        return anim.getMaxWidth();
+    }
+
+    /**
+        Gets the height of the tallest frame this Sprite can show.
+    */
+    public int getMaxHeight() {
+        return anim.getMaxHeight();
+    }
     
     public float getVelocityX() {
-        return dx;
+        return (bodies != null) ? bodies.dx[bodySlot] : dx;
     }
 
     public float getVelocityY() {
-        return dy;
+        return (bodies != null) ? bodies.dy[bodySlot] : dy;
     }
 
     public void setVelocityX(float dx) {
-        this.dx = dx;
+        if (bodies != null) {
+            bodies.dx[bodySlot] = dx;
+        }
+        else {
+            this.dx = dx;
+        }
     }
 
     public void setVelocityY(float dy) {
-        this.dy = dy;
+        if (bodies != null) {
+            bodies.dy[bodySlot] = dy;
+        }
+        else {
+            this.dy = dy;
+        }
     }
 
     public Image getImage() {
         return anim.getImage();
     }
 
+    public int getHandle() {
+        return handle;
+    }
+
+    public void setHandle(int handle) {
+        this.handle = handle;
+    }
+
+    /**
+        Gets the BodyStore holding this Sprite's position and
+        velocity, or null if the Sprite holds them itself.
+    */
+    public BodyStore getBodyStore() {
+        return bodies;
+    }
+
+    int getBodySlot() {
+        return bodySlot;
+    }
+
+    void setBody(BodyStore bodies, int slot) {
+        this.bodies = bodies;
+        this.bodySlot = slot;
+    }
+
+    /**
+        Gets the BodyStore flags for this Sprite. Plain Sprites
+        aren't affected by gravity.
+    */
+    public int getBodyFlags() {
+        return 0;
+    }
+
+    /**
+        Tells the BodyStore holding this Sprite, if any, that the
+        value of getBodyFlags() changed.
+    */
+    protected void updateBodyFlags() {
+        if (bodies != null) {
+            bodies.setFlags(this, getBodyFlags());
+        }
+    }
+
 
     public Object clone() {
         return new Sprite(anim);
@@ -0,0 +1,320 @@
+package graphics;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import javax.imageio.ImageIO;
+
+/**
+    A TextureAtlas is one large image (a sprite sheet) holding
+    many small images, and a table of the named regions where
+    each small image is. Drawing all the tiles and sprites from
+    one image lets an accelerated pipeline keep a single texture
+    instead of one per image.
+    <p>The images returned by getImage() are sub-images that
+    share the pixels of the sheet. The draw() method recognizes
+    them and draws the region straight from the sheet.
+    <p>An atlas can be written to a PNG file and a text file with
+    one line per region: the name, x, y, width and height.
+*/
+public class TextureAtlas {
+
+    // empty pixels around each region, so scaled or filtered
+    // drawing doesn't pick up pixels from a neighbor
+    private static final int PADDING = 1;
+
+    private static final int MAX_WIDTH = 1024;
+
+    // the kinds of sheets made by toCompatible()
+    private static final int[] TRANSPARENCIES = {
+        Transparency.OPAQUE, Transparency.BITMASK,
+        Transparency.TRANSLUCENT
+    };
+
+    private BufferedImage sheet;
+    private ArrayList<String> names = new ArrayList<String>();
+    private HashMap<String, Region> regionsByName =
+        new HashMap<String, Region>();
+    private IdentityHashMap<Image, Region> regionsByImage =
+        new IdentityHashMap<Image, Region>();
+
+    /**
+        Creates an empty TextureAtlas over the specified sheet.
+        Regions are added with addRegion().
+    */
+    public TextureAtlas(BufferedImage sheet) {
+        this.sheet = sheet;
+    }
+
+    /**
+        Packs images into a new TextureAtlas. Images are placed in
+        rows (shelves), tallest first, in a sheet as close to
+        square as a power-of-two width allows.
+    */
+    public static TextureAtlas pack(String[] names,
+        final Image[] images)
+    {
+        Integer[] order = new Integer[images.length];
+        int area = 0;
+        int widest = 1;
+        for (int i=0; i<images.length; i++) {
+            order[i] = Integer.valueOf(i);
+            int w = images[i].getWidth(null) + PADDING;
+            int h = images[i].getHeight(null) + PADDING;
+            area += w * h;
+            widest = Math.max(widest, w);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return images[b.intValue()].getHeight(null) -
+                    images[a.intValue()].getHeight(null);
+            }
+        });
+
+        int sheetWidth = 1;
+        while (sheetWidth < widest ||
+            (sheetWidth * sheetWidth < area && sheetWidth < MAX_WIDTH))
+        {
+            sheetWidth <<= 1;
+        }
+
+        // place the images on shelves
+        int[] x = new int[images.length];
+        int[] y = new int[images.length];
+        int shelfX = 0;
+        int shelfY = 0;
+        int shelfHeight = 0;
+        for (int j=0; j<order.length; j++) {
+            int i = order[j].intValue();
+            int w = images[i].getWidth(null) + PADDING;
+            int h = images[i].getHeight(null) + PADDING;
+            if (shelfX + w > sheetWidth) {
+                shelfX = 0;
+                shelfY += shelfHeight;
+                shelfHeight = 0;
+            }
+            x[i] = shelfX;
+            y[i] = shelfY;
+            shelfX += w;
+            shelfHeight = Math.max(shelfHeight, h);
+        }
+
+        BufferedImage sheet = new BufferedImage(sheetWidth,
+            Math.max(1, shelfY + shelfHeight),
+            BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = sheet.createGraphics();
+        for (int i=0; i<images.length; i++) {
+            g.drawImage(images[i], x[i], y[i], null);
+        }
+        g.dispose();
+
+        TextureAtlas atlas = new TextureAtlas(sheet);
+        for (int i=0; i<images.length; i++) {
+            atlas.addRegion(names[i], x[i], y[i],
+                images[i].getWidth(null), images[i].getHeight(null));
+        }
+        return atlas;
+    }
+
+    /**
+        Reads a TextureAtlas from a sheet image and a region table
+        written by write().
+    */
+    public static TextureAtlas read(File imageFile, File tableFile)
+        throws IOException
+    {
+        BufferedImage sheet = ImageIO.read(imageFile);
+        if (sheet == null) {
+            throw new IOException("Not an image: " + imageFile);
+        }
+        TextureAtlas atlas = new TextureAtlas(sheet);
+
+        BufferedReader reader = new BufferedReader(
+            new FileReader(tableFile));
+        try {
+            while (true) {
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != 5) {
+                    throw new IOException("Bad region: " + line);
+                }
+                try {
+                    atlas.addRegion(fields[0],
+                        Integer.parseInt(fields[1]),
+                        Integer.parseInt(fields[2]),
+                        Integer.parseInt(fields[3]),
+                        Integer.parseInt(fields[4]));
+                }
+                catch (RuntimeException ex) {
+                    throw new IOException("Bad region: " + line);
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return atlas;
+    }
+
+    /**
+        Writes the sheet as a PNG image and the region table as
+        text.
+    */
+    public void write(File imageFile, File tableFile)
+        throws IOException
+    {
+        if (!ImageIO.write(sheet, "png", imageFile)) {
+            throw new IOException("No PNG writer");
+        }
+        PrintWriter writer = new PrintWriter(
+            new BufferedWriter(new FileWriter(tableFile)));
+        try {
+            writer.println("# name x y width height");
+            for (int i=0; i<names.size(); i++) {
+                Region region = regionsByName.get(names.get(i));
+                writer.println(names.get(i) + " " + region.x + " " +
+                    region.y + " " + region.width + " " +
+                    region.height);
+            }
+        }
+        finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Couldn't write " + tableFile);
+        }
+    }
+
+    /**
+        Adds a named region of the sheet. Replaces any region with
+        the same name.
+    */
+    public void addRegion(String name, int x, int y, int width,
+        int height)
+    {
+        Region region = new Region();
+        region.x = x;
+        region.y = y;
+        region.width = width;
+        region.height = height;
+        region.image = sheet.getSubimage(x, y, width, height);
+
+        Region old = regionsByName.put(name, region);
+        if (old != null) {
+            regionsByImage.remove(old.image);
+        }
+        else {
+            names.add(name);
+        }
+        regionsByImage.put(region.image, region);
+    }
+
+    /**
+        Creates copies of this atlas converted to compatible images
+        for the specified GraphicsConfiguration. The regions are
+        repacked into one sheet per Transparency found by the
+        ImageConverter, so a few translucent images don't make the
+        opaque and bitmask ones slower to draw. The regions keep
+        their names.
+    */
+    public TextureAtlas[] toCompatible(GraphicsConfiguration gc) {
+        ArrayList<TextureAtlas> atlases = new ArrayList<TextureAtlas>();
+        for (int t=0; t<TRANSPARENCIES.length; t++) {
+            ArrayList<String> groupNames = new ArrayList<String>();
+            for (int i=0; i<names.size(); i++) {
+                Region region = regionsByName.get(names.get(i));
+                if (getTransparency(region) == TRANSPARENCIES[t]) {
+                    groupNames.add(names.get(i));
+                }
+            }
+            if (groupNames.isEmpty()) {
+                continue;
+            }
+
+            String[] group = groupNames.toArray(
+                new String[groupNames.size()]);
+            Image[] images = new Image[group.length];
+            for (int i=0; i<group.length; i++) {
+                images[i] = getImage(group[i]);
+            }
+            TextureAtlas packed = pack(group, images);
+            TextureAtlas atlas = new TextureAtlas(
+                ImageConverter.toCompatible(packed.sheet, gc,
+                TRANSPARENCIES[t]));
+            for (int i=0; i<group.length; i++) {
+                Region region = packed.regionsByName.get(group[i]);
+                atlas.addRegion(group[i], region.x, region.y,
+                    region.width, region.height);
+            }
+            atlases.add(atlas);
+        }
+        return atlases.toArray(new TextureAtlas[atlases.size()]);
+    }
+
+    /**
+        Gets the Transparency of a region, found from its pixels
+        the first time.
+    */
+    private int getTransparency(Region region) {
+        if (region.transparency == 0) {
+            region.transparency =
+                ImageConverter.getTransparency(region.image);
+        }
+        return region.transparency;
+    }
+
+    /**
+        Gets the names of the regions, in the order they were
+        added.
+    */
+    public String[] getNames() {
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+        Gets the image of a named region, or null if there is no
+        such region. The same image is returned every time.
+    */
+    public Image getImage(String name) {
+        Region region = regionsByName.get(name);
+        return (region != null) ? region.image : null;
+    }
+
+    /**
+        Draws an image returned by getImage() straight from the
+        sheet. Returns false, drawing nothing, if the image isn't
+        a region of this atlas.
+    */
+    public boolean draw(Graphics g, Image image, int x, int y) {
+        Region region = regionsByImage.get(image);
+        if (region == null) {
+            return false;
+        }
+        g.drawImage(sheet, x, y, x + region.width, y + region.height,
+            region.x, region.y, region.x + region.width,
+            region.y + region.height, null);
+        return true;
+    }
+
+    private static class Region {
+        int x;
+        int y;
+        int width;
+        int height;
+        Image image;
+        // 0 until it's found
+        int transparency;
+    }
+}
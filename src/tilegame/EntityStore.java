@@ -0,0 +1,263 @@
+package tilegame;
+
+import java.util.Arrays;
+
+import graphics.Sprite;
+
+/**
+    The EntityStore class keeps a set of Sprites packed in an
+    array, so they can be walked by index without creating an
+    Iterator or chasing list nodes.
+    <p>Every Sprite added gets a handle that stays the same for as
+    long as the Sprite is in the store, even though its index
+    changes when other Sprites are removed. Removing is O(1): the
+    last Sprite is moved into the gap. Between beginIteration()
+    and endIteration(), removed Sprites leave a null behind
+    instead, and the gaps are filled when the iteration ends, so
+    removing during a walk never skips a Sprite.
+    <p>The Sprites are split into active ones, at indices below
+    getActiveCount(), and parked ones after them, so the active
+    Sprites can be walked without looking at the parked ones.
+    Sprites are parked when added.
+*/
+public class EntityStore {
+
+    public static final int NO_HANDLE = -1;
+
+    // a handle is a slot number plus a generation count, so
+    // handles of removed Sprites don't match reused slots
+    private static final int SLOT_BITS = 20;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int GENERATION_MASK = 0x7ff;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // packed Sprites, and the slot of each
+    private Sprite[] entities;
+    private int[] entitySlots;
+    private int count;
+    private int activeCount;
+
+    // for each slot, the index of its Sprite (-1 if free)
+    private int[] slotIndex;
+    private int[] slotGeneration;
+    private int numSlots;
+    private int[] freeSlots;
+    private int numFreeSlots;
+
+    // removals deferred until the iteration ends
+    private int iterating;
+    private int[] pending;
+    private int numPending;
+
+    public EntityStore() {
+        entities = new Sprite[INITIAL_CAPACITY];
+        entitySlots = new int[INITIAL_CAPACITY];
+        slotIndex = new int[INITIAL_CAPACITY];
+        slotGeneration = new int[INITIAL_CAPACITY];
+        freeSlots = new int[INITIAL_CAPACITY];
+        pending = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+        Gets the number of indices, including the gaps left by
+        Sprites removed during the current iteration.
+    */
+    public int size() {
+        return count;
+    }
+
+    /**
+        Gets the number of active Sprites. They are at the indices
+        below this number.
+    */
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+        Gets the Sprite at an index, or null if it was removed
+        during the current iteration.
+    */
+    public Sprite get(int index) {
+        return entities[index];
+    }
+
+    /**
+        Returns true if the Sprite is in this store and active.
+    */
+    public boolean isActive(Sprite sprite) {
+        int index = getIndex(sprite.getHandle());
+        return (index >= 0 && index < activeCount &&
+            entities[index] == sprite);
+    }
+
+    /**
+        Makes a parked Sprite active. Can't be called during an
+        iteration, since it moves Sprites to other indices.
+    */
+    public void activate(Sprite sprite) {
+        int index = getIndex(sprite.getHandle());
+        if (index >= activeCount && entities[index] == sprite) {
+            checkNotIterating();
+            swap(index, activeCount);
+            activeCount++;
+        }
+    }
+
+    /**
+        Parks an active Sprite. Can't be called during an
+        iteration, since it moves Sprites to other indices.
+    */
+    public void park(Sprite sprite) {
+        int index = getIndex(sprite.getHandle());
+        if (index >= 0 && index < activeCount &&
+            entities[index] == sprite)
+        {
+            checkNotIterating();
+            activeCount--;
+            swap(index, activeCount);
+        }
+    }
+
+    private void checkNotIterating() {
+        if (iterating > 0) {
+            throw new IllegalStateException(
+                "Can't activate or park during an iteration");
+        }
+    }
+
+    private int getIndex(int handle) {
+        if (handle < 0) {
+            return -1;
+        }
+        int slot = handle & SLOT_MASK;
+        if (slot >= numSlots || slotGeneration[slot] !=
+            (handle >>> SLOT_BITS))
+        {
+            return -1;
+        }
+        return slotIndex[slot];
+    }
+
+    /**
+        Adds a Sprite, and sets its handle.
+    */
+    public void add(Sprite sprite) {
+        int slot;
+        if (numFreeSlots > 0) {
+            slot = freeSlots[--numFreeSlots];
+        }
+        else {
+            if (numSlots == slotIndex.length) {
+                slotIndex = Arrays.copyOf(slotIndex, numSlots * 2);
+                slotGeneration = Arrays.copyOf(slotGeneration,
+                    numSlots * 2);
+            }
+            slot = numSlots++;
+        }
+
+        if (count == entities.length) {
+            entities = Arrays.copyOf(entities, count * 2);
+            entitySlots = Arrays.copyOf(entitySlots, count * 2);
+        }
+        entities[count] = sprite;
+        entitySlots[count] = slot;
+        slotIndex[slot] = count;
+        count++;
+
+        sprite.setHandle((slotGeneration[slot] << SLOT_BITS) | slot);
+    }
+
+    /**
+        Removes a Sprite. Returns false if it isn't in the store.
+    */
+    public boolean remove(Sprite sprite) {
+        int index = getIndex(sprite.getHandle());
+        if (index < 0 || entities[index] != sprite) {
+            return false;
+        }
+
+        freeSlot(entitySlots[index]);
+        sprite.setHandle(NO_HANDLE);
+        if (iterating > 0) {
+            // leave a gap until the iteration ends
+            entities[index] = null;
+            if (numPending == pending.length) {
+                pending = Arrays.copyOf(pending, numPending * 2);
+            }
+            pending[numPending++] = index;
+        }
+        else {
+            fillGap(index);
+        }
+        return true;
+    }
+
+    /**
+        Starts walking the Sprites by index. Until
+        endIteration() is called, indices don't change.
+    */
+    public void beginIteration() {
+        iterating++;
+    }
+
+    /**
+        Ends a walk started with beginIteration(), and fills the
+        gaps left by removed Sprites.
+    */
+    public void endIteration() {
+        if (--iterating > 0 || numPending == 0) {
+            return;
+        }
+        // fill the gaps from the highest index down, so the Sprite
+        // moved into a gap is never a gap itself
+        Arrays.sort(pending, 0, numPending);
+        for (int i=numPending - 1; i>=0; i--) {
+            fillGap(pending[i]);
+        }
+        numPending = 0;
+    }
+
+    private void freeSlot(int slot) {
+        slotIndex[slot] = -1;
+        slotGeneration[slot] =
+            (slotGeneration[slot] + 1) & GENERATION_MASK;
+        if (numFreeSlots == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, numFreeSlots * 2);
+        }
+        freeSlots[numFreeSlots++] = slot;
+    }
+
+    private void fillGap(int index) {
+        if (index < activeCount) {
+            // move the last active Sprite into the gap, so the gap
+            // is the first parked index
+            activeCount--;
+            move(activeCount, index);
+            index = activeCount;
+        }
+        int last = --count;
+        move(last, index);
+        entities[last] = null;
+    }
+
+    private void move(int from, int to) {
+        if (from != to) {
+            entities[to] = entities[from];
+            entitySlots[to] = entitySlots[from];
+            slotIndex[entitySlots[to]] = to;
+        }
+    }
+
+    private void swap(int i, int j) {
+        Sprite sprite = entities[i];
+        int slot = entitySlots[i];
+        entities[i] = entities[j];
+        entitySlots[i] = entitySlots[j];
+        entities[j] = sprite;
+        entitySlots[j] = slot;
+        slotIndex[entitySlots[i]] = i;
+        slotIndex[slot] = j;
+    }
+}
@@ -4,7 +4,10 @@ import java.awt.*;
 
 import java.awt.event.KeyEvent;
 import java.io.File;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
@@ -14,8 +17,12 @@ import graphics.*;
 import sound.*;
 import input.*;
 import core.GameCore;
+import core.FramePacer;
+import core.FrameStats;
 import tilegame.sprites.*;
 import tilegame.ResourceManager;
+import util.LoadingProgress;
+import util.TripleBuffer;
 
 
 /**
@@ -23,8 +30,51 @@ import tilegame.ResourceManager;
 */
 public class GameManager extends GameCore {
 	
+    /**
+        Runs the game. Use "-headless [steps]" to run only the
+        simulation, with no display, input, or sound. Use
+        "-threaded" to simulate and draw on separate threads. Use
+        "-unbatched" to update each creature's physics on its own
+        instead of in a BodyStore batch. Use "-allactive" to update
+        every sprite in the map, not just those near the screen.
+        Use "-parallel" to update crowded maps on all processors.
+        Use "-software" to draw frames with the multi-threaded
+        SoftwareRenderer instead of Java2D. Use "-uncached" to draw
+        each tile on its own instead of from pre-drawn blocks.
+    */
     public static void main(String[] args) {
-        new GameManager().run();  
+        GameManager game = new GameManager();
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("-headless")) {
+                System.setProperty("java.awt.headless", "true");
+                long steps = 0;
+                if (i + 1 < args.length &&
+                    args[i + 1].matches("\\d+"))
+                {
+                    steps = Long.parseLong(args[++i]);
+                }
+                game.setHeadless(true, steps);
+            }
+            else if (args[i].equals("-threaded")) {
+                game.setThreadedRendering(true);
+            }
+            else if (args[i].equals("-unbatched")) {
+                game.batchedPhysics = false;
+            }
+            else if (args[i].equals("-allactive")) {
+                game.setActiveRegion(false);
+            }
+            else if (args[i].equals("-parallel")) {
+                game.setParallelUpdate(true);
+            }
+            else if (args[i].equals("-software")) {
+                game.softwareRendering = true;
+            }
+            else if (args[i].equals("-uncached")) {
+                game.tileCache = false;
+            }
+        }
+        game.run();  
         
         
     }
@@ -34,13 +84,55 @@ public class GameManager extends GameCore {
     
     public static final float GRAVITY = 0.002f;
 
+    // simulation rate; each step is 10ms of game time
+    private static final int TICKS_PER_SECOND = 100;
+    private static final int MAX_CATCH_UP_STEPS = 5;
+
+    // frame rates when playing and when the window is in the
+    // background or the sound is paused
+    private static final int TARGET_FPS = 60;
+    private static final int IDLE_FPS = 10;
+
+    // screen width used to wake up creatures in headless mode
+    private static final int HEADLESS_SCREEN_WIDTH = 800;
+
+    // sprites closer to the screen than this (in pixels) are
+    // updated, and sprites farther than the park margin aren't
+    private static final int ACTIVATE_MARGIN = 256;
+    private static final int PARK_MARGIN = 512;
+
+    // time between frames of the loading screen, in milliseconds
+    private static final int LOADING_SCREEN_DELAY = 16;
+    private static final int LOADING_BAR_HEIGHT = 16;
+
     private Point pointCache = new Point();
+    private ArrayList<Sprite> spriteCache = new ArrayList<Sprite>();
     private TileMap map;
     private SoundManager soundManager;
     private ResourceManager resourceManager;
     private InputManager inputManager;
     private TileMapRenderer renderer;
     private Sound jumpSound;
+    private boolean batchedPhysics = true;
+    private boolean softwareRendering;
+    private boolean tileCache = true;
+    private boolean activeRegion = true;
+    // updates the sprites on several threads, if not null
+    private ParallelSpriteUpdater parallelUpdater;
+    // the GraphicsConfiguration the images were converted for
+    private GraphicsConfiguration graphicsConfiguration;
+    // the last map whose palette convertFrame() brought up to
+    // date, and the image generation it was converted to
+    private TileMap convertedMap;
+    private int convertedGeneration;
+
+    // snapshots drawn by the renderer; when rendering is threaded,
+    // they're passed from the simulation thread through the
+    // triple buffer
+    private WorldSnapshot snapshot = new WorldSnapshot();
+    private TripleBuffer<WorldSnapshot> snapshots =
+        new TripleBuffer<WorldSnapshot>(new WorldSnapshot(),
+            new WorldSnapshot(), new WorldSnapshot());
 
     private GameAction moveLeft;
     private GameAction moveRight;
@@ -51,21 +143,36 @@ public class GameManager extends GameCore {
 
     public void init() {
         super.init();
+        setFixedTimestep(TICKS_PER_SECOND, MAX_CATCH_UP_STEPS);
+        if (isHeadless()) {
+            initHeadless();
+            return;
+        }
+        setFramePacer(new FramePacer(TARGET_FPS, IDLE_FPS));
         
         // set up input manager
         initInput();    
 
         // start resource manager
-        resourceManager = new ResourceManager(
-        screen.getFullScreenWindow().getGraphicsConfiguration());
+        graphicsConfiguration =
+            screen.getFullScreenWindow().getGraphicsConfiguration();
+        resourceManager = loadResources(graphicsConfiguration);
+        resourceManager.setBatchedPhysics(batchedPhysics);
 
         // load resources
-        renderer = new TileMapRenderer();
+        renderer = softwareRendering ?
+            new SoftwareRenderer() : new TileMapRenderer();
+        renderer.setTileCacheEnabled(tileCache);
         renderer.setBackground(
         resourceManager.loadImage("background.png"));
+        TextureAtlas[] atlases = resourceManager.getAtlases();
+        for (int i=0; i<atlases.length; i++) {
+            renderer.addAtlas(atlases[i]);
+        }
  
         // load first map
         map = resourceManager.loadNextMap();
+        storePositions();
         
         // load sounds
         soundManager = new SoundManager(PLAYBACK_FORMAT);
@@ -76,20 +183,115 @@ public class GameManager extends GameCore {
         
     }  
 
+    /**
+        Creates the ResourceManager in another thread, drawing a
+        loading screen with its progress until it's done.
+    */
+    private ResourceManager loadResources(
+        final GraphicsConfiguration gc)
+    {
+        final LoadingProgress progress = new LoadingProgress();
+        Callable<ResourceManager> task = new Callable<ResourceManager>() {
+            public ResourceManager call() {
+                return new ResourceManager(gc, progress);
+            }
+        };
+        FutureTask<ResourceManager> loading =
+            new FutureTask<ResourceManager>(task);
+        Thread thread = new Thread(loading, "ResourceLoader");
+        thread.setDaemon(true);
+        thread.start();
+
+        while (!loading.isDone()) {
+            drawLoadingScreen(progress.getProgress());
+            try {
+                Thread.sleep(LOADING_SCREEN_DELAY);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        try {
+            return loading.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading");
+        }
+        catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+        Draws a progress bar showing the fraction (0 to 1) of the
+        resources loaded.
+    */
+    private void drawLoadingScreen(float progress) {
+        int width = screen.getWidth();
+        int height = screen.getHeight();
+        int barWidth = width / 2;
+        int barX = (width - barWidth) / 2;
+        int barY = height / 2;
+
+        Graphics2D g = screen.getGraphics();
+        g.setColor(Color.black);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.white);
+        g.drawString("Loading...", barX, barY - LOADING_BAR_HEIGHT);
+        g.drawRect(barX, barY, barWidth, LOADING_BAR_HEIGHT);
+        g.fillRect(barX, barY, Math.round(barWidth * progress),
+            LOADING_BAR_HEIGHT);
+        g.dispose();
+        screen.update();
+    }
+
+    /**
+        Sets up the game with no display: the GameActions aren't
+        mapped to any input, images are decoded without a
+        GraphicsConfiguration, and there is no renderer or sound.
+    */
+    private void initHeadless() {
+        createGameActions();
+
+        resourceManager = new ResourceManager(null);
+        resourceManager.setBatchedPhysics(batchedPhysics);
+        map = resourceManager.loadNextMap();
+        storePositions();
+    }
+
     public void stop() {
         super.stop();
-        soundManager.close();
+        if (soundManager != null) {
+            soundManager.close();
+        }
+        if (resourceManager != null) {
+            resourceManager.close();
+        }
+        if (renderer instanceof SoftwareRenderer) {
+            ((SoftwareRenderer)renderer).close();
+        }
+        if (parallelUpdater != null) {
+            parallelUpdater.close();
+        }
+        if (getFramePacer() != null) {
+            System.out.println("Frame pacing: " + getFramePacer());
+        }
+    }
+
+
+    public boolean isIdle() {
+        return isHeadless() ||
+            !screen.getFullScreenWindow().isFocused() ||
+            (soundManager != null && soundManager.isPaused());
     }
 
 
     private void initInput() {
     	
-        moveLeft = new GameAction("moveLeft");
-        moveRight = new GameAction("moveRight");
-        jump = new GameAction("jump",
-            GameAction.DETECT_INITAL_PRESS_ONLY);
-        exit = new GameAction("exit",
-            GameAction.DETECT_INITAL_PRESS_ONLY);
+        createGameActions();
 
         inputManager = new InputManager(
             screen.getFullScreenWindow());
@@ -102,6 +304,15 @@ public class GameManager extends GameCore {
         
     }
 
+    private void createGameActions() {
+        moveLeft = new GameAction("moveLeft");
+        moveRight = new GameAction("moveRight");
+        jump = new GameAction("jump",
+            GameAction.DETECT_INITAL_PRESS_ONLY);
+        exit = new GameAction("exit",
+            GameAction.DETECT_INITAL_PRESS_ONLY);
+    }
+
     // checks the users input for player movement 
     private void checkInput(long elapsedTime) {
 
@@ -120,7 +331,9 @@ public class GameManager extends GameCore {
             }
             if (jump.isPressed()) {
                 player.jump(false);
-                soundManager.play(jumpSound);
+                if (soundManager != null) {
+                    soundManager.play(jumpSound);
+                }
             }
             player.setVelocityX(velocityX);
         }
@@ -128,6 +341,9 @@ public class GameManager extends GameCore {
     
     // plays an instance of a chosen sound
 	public void playSound(String soundName){
+	      if (isHeadless()) {
+	          return;
+	      }
     	
 	      try {   
 	    	  
@@ -147,6 +363,9 @@ public class GameManager extends GameCore {
     
     // loops an instance of a chosen sound
     public void playLoop(String soundName){
+        if (isHeadless()) {
+            return;
+        }
     	
         try {   
       	  
@@ -166,9 +385,33 @@ public class GameManager extends GameCore {
    }
        
     public void draw(Graphics2D g) {
-        renderer.draw(g, map,
-            screen.getWidth(), screen.getHeight());
+        draw(g, 1);
+    }
+
+    public void draw(Graphics2D g, float alpha) {
+        checkGraphicsConfiguration();
+
+        WorldSnapshot frame;
+        if (isThreadedRendering()) {
+            frame = snapshots.getFront();
+        }
+        else {
+            frame = snapshot;
+            frame.setImageGeneration(
+                resourceManager.getImageGeneration());
+            frame.capture(map, screen.getWidth(), screen.getHeight());
+        }
+        convertFrame(frame);
+        renderer.draw(g, frame,
+            screen.getWidth(), screen.getHeight(), alpha);
+
+    }
 
+    public void publishFrame() {
+        WorldSnapshot back = snapshots.getBack();
+        back.setImageGeneration(resourceManager.getImageGeneration());
+        back.capture(map, screen.getWidth(), screen.getHeight());
+        snapshots.publish();
     }
 
     public TileMap getMap() {
@@ -177,6 +420,16 @@ public class GameManager extends GameCore {
 
     public Point getTileCollision(Sprite sprite,
         float newX, float newY)
+    {
+        return getTileCollision(sprite, newX, newY, pointCache);
+    }
+
+    /**
+        Gets the tile a Sprite collides with, stored in the
+        specified Point, or null if there is none.
+    */
+    public Point getTileCollision(Sprite sprite,
+        float newX, float newY, Point point)
     {
         float fromX = Math.min(sprite.getX(), newX);
         float fromY = Math.min(sprite.getY(), newY);
@@ -191,17 +444,12 @@ public class GameManager extends GameCore {
         int toTileY = TileMapRenderer.pixelsToTiles(
             toY + sprite.getHeight() - 1);
 
-        // check each tile for a collision
-        for (int x=fromTileX; x<=toTileX; x++) {
-            for (int y=fromTileY; y<=toTileY; y++) {
-                if (x < 0 || x >= map.getWidth() ||
-                    map.getTile(x, y) != null)
-                {
-                    // collision found, return the tile
-                    pointCache.setLocation(x, y);
-                    return pointCache;
-                }
-            }
+        // check the tiles for a collision
+        if (map.findSolidTile(fromTileX, fromTileY,
+            toTileX, toTileY, point))
+        {
+            // collision found, return the tile
+            return point;
         }
 
         // no collision found
@@ -237,61 +485,268 @@ public class GameManager extends GameCore {
 
     public Sprite getSpriteCollision(Sprite sprite) {
 
-        // run through the list of Sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite otherSprite = (Sprite)i.next();
+        // run through the Sprites near this one (allowing a pixel
+        // either way for rounding)
+        spriteCache.clear();
+        map.getSprites(sprite.getX() - 1, sprite.getY() - 1,
+            sprite.getWidth() + 2, sprite.getHeight() + 2,
+            spriteCache);
+        for (int i=0; i<spriteCache.size(); i++) {
+            Sprite otherSprite = spriteCache.get(i);
             if (isCollision(sprite, otherSprite)) {
                 // collision found, return the Sprite
+                spriteCache.clear();
                 return otherSprite;
             }
         }
 
         // no collision found
+        spriteCache.clear();
         return null;
     }
 
+    /**
+        Sets whether only the sprites near the screen are updated.
+        On by default.
+    */
+    public void setActiveRegion(boolean activeRegion) {
+        this.activeRegion = activeRegion;
+    }
+
+    /**
+        Sets whether the sprites are updated on several threads
+        when there are enough of them. Off by default.
+    */
+    public void setParallelUpdate(boolean parallel) {
+        if (parallel && parallelUpdater == null) {
+            parallelUpdater = new ParallelSpriteUpdater(this);
+        }
+        else if (!parallel && parallelUpdater != null) {
+            parallelUpdater.close();
+            parallelUpdater = null;
+        }
+    }
+
+    /**
+        Converts the images if the window has moved to a screen
+        with a different GraphicsConfiguration. Called from draw(),
+        so with threaded rendering the images only change between
+        frames of the render thread.
+    */
+    private void checkGraphicsConfiguration() {
+        GraphicsConfiguration gc =
+            screen.getFullScreenWindow().getGraphicsConfiguration();
+        if (gc == graphicsConfiguration || gc == null) {
+            return;
+        }
+        graphicsConfiguration = gc;
+        TextureAtlas[] oldAtlases = resourceManager.getAtlases();
+        if (!resourceManager.setGraphicsConfiguration(gc)) {
+            return;
+        }
+        for (int i=0; i<oldAtlases.length; i++) {
+            renderer.removeAtlas(oldAtlases[i]);
+        }
+        TextureAtlas[] atlases = resourceManager.getAtlases();
+        for (int i=0; i<atlases.length; i++) {
+            renderer.addAtlas(atlases[i]);
+        }
+        renderer.setBackground(
+            resourceManager.convertImage(renderer.getBackground()));
+    }
+
+    /**
+        Brings the images of a frame up to date with the last
+        GraphicsConfiguration change, so a frame never mixes old
+        and new images: Sprite images captured before the change,
+        and the palette of a map loaded before it.
+    */
+    private void convertFrame(WorldSnapshot frame) {
+        int generation = resourceManager.getImageGeneration();
+        if (generation == 0) {
+            // never changed
+            return;
+        }
+        frame.convertImages(resourceManager);
+        TileMap frameMap = frame.getMap();
+        if (frameMap != null && (frameMap != convertedMap ||
+            generation != convertedGeneration))
+        {
+            Image[] palette = frameMap.getPalette();
+            Image[] converted = resourceManager.convertImages(palette);
+            if (converted != palette) {
+                frameMap.setPalette(converted);
+            }
+            convertedMap = frameMap;
+            convertedGeneration = generation;
+        }
+    }
+
     public void update(long elapsedTime) {
         Creature player = (Creature)map.getPlayer();
 
 
         // player is dead! start map over
         if (player.getState() == Creature.STATE_DEAD) {
+            resourceManager.releaseMap(map);
             map = resourceManager.reloadMap();
+            storePositions();
             return;
         }              
 
+        // remember where everything was for interpolated drawing
+        storePositions();
+
+        // load and evict chunks of streamed maps around the player
+        map.updateStreaming(
+            TileMapRenderer.pixelsToTiles(player.getX()));
+
+        // choose which sprites to update
+        updateActiveRegion();
+
         // get keyboard/mouse input
+        long inputTime = System.nanoTime();
         checkInput(elapsedTime);
+        getFrameStats().record(FrameStats.INPUT,
+            System.nanoTime() - inputTime);
 
         // update player
         updateCreature(player, elapsedTime);
         player.update(elapsedTime);
 
-        // update other sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite)i.next();
-            if (sprite instanceof Creature) {
-                Creature creature = (Creature)sprite;
-                if (creature.getState() == Creature.STATE_DEAD) {
-                    i.remove();
+        // apply gravity and velocity to all the sprites at once
+        BodyStore bodies = map.getBodyStore();
+        if (bodies != null) {
+            bodies.integrate(GRAVITY, elapsedTime);
+        }
+
+        // update other active sprites (dead ones are removed when
+        // the walk ends)
+        if (parallelUpdater == null ||
+            !parallelUpdater.update(map, elapsedTime))
+        {
+            map.beginIteration();
+            for (int i=0; i<map.getActiveSpriteCount(); i++) {
+                Sprite sprite = map.getSprite(i);
+                if (sprite == null) {
+                    continue;
                 }
-                else {
-                    updateCreature(creature, elapsedTime);
+                if (isDead(sprite)) {
+                    removeDeadSprite(map, sprite);
+                    continue;
                 }
+                float oldX = sprite.getX();
+                float oldY = sprite.getY();
+                updateSprite(sprite, elapsedTime, pointCache);
+                map.moveSprite(sprite, oldX, oldY);
             }
-            // normal update
-            sprite.update(elapsedTime);
+            map.endIteration();
+        }
+
+        wakeUpCreatures();
+    }
+
+    /**
+        Removes a dead creature from the map and keeps it for
+        reuse.
+    */
+    void removeDeadSprite(TileMap map, Sprite sprite) {
+        map.removeSprite(sprite);
+        resourceManager.releaseSprite(sprite);
+    }
+
+    /**
+        Returns true if the sprite is a dead creature, to be
+        removed from the map.
+    */
+    static boolean isDead(Sprite sprite) {
+        return (sprite instanceof Creature &&
+            ((Creature)sprite).getState() == Creature.STATE_DEAD);
+    }
+
+    /**
+        Updates a sprite other than the player, without touching
+        the map's SpriteGrid. This may be called from several
+        threads at once for different sprites; the Point is used
+        for tile collisions, and must not be shared between
+        threads.
+    */
+    void updateSprite(Sprite sprite, long elapsedTime, Point point) {
+        if (sprite instanceof Creature) {
+            updateCreature((Creature)sprite, elapsedTime, point);
+        }
+        // normal update
+        sprite.update(elapsedTime);
+    }
+
+    private int getScreenWidth() {
+        return (screen != null) ?
+            screen.getWidth() : HEADLESS_SCREEN_WIDTH;
+    }
+
+    /**
+        Activates the sprites near the screen and parks the ones
+        far from it, or activates every sprite if the active region
+        is off.
+    */
+    private void updateActiveRegion() {
+        if (!activeRegion) {
+            map.activateAll();
+            return;
+        }
+        int screenWidth = getScreenWidth();
+        int left = -TileMapRenderer.getOffsetX(map,
+            map.getPlayer().getX(), screenWidth);
+        int right = left + screenWidth;
+        map.updateActiveRegion(left - ACTIVATE_MARGIN,
+            right + ACTIVATE_MARGIN, left - PARK_MARGIN,
+            right + PARK_MARGIN);
+    }
+
+    /**
+        Wakes up the creatures that are on screen. (Everything on
+        screen is active.)
+    */
+    private void wakeUpCreatures() {
+        int screenWidth = getScreenWidth();
+        int offsetX = TileMapRenderer.getOffsetX(map,
+            map.getPlayer().getX(), screenWidth);
+
+        for (int i=0; i<map.getActiveSpriteCount(); i++) {
+            Sprite sprite = map.getSprite(i);
+            int x = Math.round(sprite.getX()) + offsetX;
+            if (sprite instanceof Creature &&
+                x >= 0 && x < screenWidth)
+            {
+                ((Creature)sprite).wakeUp();
+            }
+        }
+    }
+
+    /**
+        Remembers where the player and the active sprites are.
+        Parked sprites don't move, and were stored when parked.
+    */
+    private void storePositions() {
+        map.getPlayer().storePosition();
+        for (int i=0; i<map.getActiveSpriteCount(); i++) {
+            map.getSprite(i).storePosition();
         }
     }
 
     private void updateCreature(Creature creature,
         long elapsedTime)
     {
+        updateCreature(creature, elapsedTime, pointCache);
+    }
+
+    private void updateCreature(Creature creature,
+        long elapsedTime, Point point)
+    {
 
-        // apply gravity
-        if (!creature.isFlying()) {
+        // apply gravity, unless BodyStore.integrate() already did
+        BodyStore bodies = creature.getBodyStore();
+        if (bodies == null && !creature.isFlying()) {
             creature.setVelocityY(creature.getVelocityY() +
                 GRAVITY * elapsedTime);
         }
@@ -299,9 +754,10 @@ public class GameManager extends GameCore {
         // change x
         float dx = creature.getVelocityX();
         float oldX = creature.getX();
-        float newX = oldX + dx * elapsedTime;
+        float newX = (bodies != null) ? bodies.getTargetX(creature) :
+            oldX + dx * elapsedTime;
         Point tile =
-            getTileCollision(creature, newX, creature.getY());
+            getTileCollision(creature, newX, creature.getY(), point);
         if (tile == null) {
             creature.setX(newX);
         }
@@ -325,8 +781,10 @@ public class GameManager extends GameCore {
         // change y
         float dy = creature.getVelocityY();
         float oldY = creature.getY();
-        float newY = oldY + dy * elapsedTime;
-        tile = getTileCollision(creature, creature.getX(), newY);
+        float newY = (bodies != null) ? bodies.getTargetY(creature) :
+            oldY + dy * elapsedTime;
+        tile = getTileCollision(creature, creature.getX(), newY,
+            point);
         if (tile == null) {
             creature.setY(newY);
         }
@@ -382,8 +840,9 @@ public class GameManager extends GameCore {
     }
     
     public void acquirePowerUp(Items powerUp) {
-        // remove it from the map
+        // remove it from the map, and keep it for reuse
         map.removeSprite(powerUp);
+        resourceManager.releaseSprite(powerUp);
 
         if (powerUp instanceof Items.Coin) {
             // do something here, like give the player points
@@ -395,7 +854,9 @@ public class GameManager extends GameCore {
             // advance to next map
         	String fileName = "sounds/door.wav";
     	    playSound(fileName);
+            resourceManager.releaseMap(map);
             map = resourceManager.loadNextMap();
+            storePositions();
         }
     }
 
@@ -0,0 +1,189 @@
+package tilegame;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+    The MapConverter class converts text map files (maps/mapN.txt)
+    to the binary format read by MapFile. Run it with the text
+    files to convert:
+    <pre>java tilegame.MapConverter maps/map1.txt maps/map2.txt</pre>
+    Each file is written next to the text file, with a ".bin"
+    extension. ResourceManager also converts maps automatically
+    when the binary file is missing or older than the text file.
+*/
+public class MapConverter {
+
+    private int numTiles;
+
+    public static void main(String[] args) throws IOException {
+        MapConverter converter =
+            new MapConverter(countTileImages());
+        for (int i=0; i<args.length; i++) {
+            File textFile = new File(args[i]);
+            File binaryFile = getBinaryFile(textFile);
+            converter.convert(textFile, binaryFile);
+            System.out.println("Wrote " + binaryFile);
+        }
+    }
+
+    /**
+        Creates a new MapConverter. Letters A, B, C, etc. are only
+        treated as tiles if there are that many tile images.
+    */
+    public MapConverter(int numTiles) {
+        this.numTiles = numTiles;
+    }
+
+    /**
+        Counts the tile images (images/tile_A.png, tile_B.png,
+        etc.), the same way ResourceManager finds them.
+    */
+    public static int countTileImages() {
+        int count = 0;
+        while (new File("images/tile_" + (char)('A' + count) +
+            ".png").exists())
+        {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+        Gets the binary map file for a text map file.
+    */
+    public static File getBinaryFile(File textFile) {
+        String name = textFile.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(textFile.getParentFile(), name + ".bin");
+    }
+
+    /**
+        Reads the lines of a text map file, skipping comments.
+    */
+    public static ArrayList<String> readLines(File textFile)
+        throws IOException
+    {
+        ArrayList<String> lines = new ArrayList<String>();
+
+        // read every line in the text file into the list
+        BufferedReader reader = new BufferedReader(
+            new FileReader(textFile));
+        try {
+            while (true) {
+                String line = reader.readLine();
+                // no more lines to read
+                if (line == null) {
+                    break;
+                }
+
+                // add every line except for comments
+                if (!line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+        Gets the tile id a map character represents, or
+        TileMap.EMPTY_TILE if it isn't a tile.
+    */
+    public int getTileId(char ch) {
+        // check if the char represents tile A, B, C etc.
+        int tile = ch - 'A';
+        if (tile >= 0 && tile < numTiles) {
+            return tile + 1;
+        }
+        return TileMap.EMPTY_TILE;
+    }
+
+    /**
+        Converts a text map file to a binary map file.
+    */
+    public void convert(File textFile, File binaryFile)
+        throws IOException
+    {
+        ArrayList<String> lines = readLines(textFile);
+        int width = 0;
+        int height = lines.size();
+        for (int y=0; y<height; y++) {
+            width = Math.max(width, lines.get(y).length());
+        }
+        int numChunks = MapFile.getNumChunks(width);
+
+        // find the spawns, sorted by x, and where each chunk's
+        // spawns start
+        ArrayList<int[]> spawns = new ArrayList<int[]>();
+        int[] spawnIndex = new int[numChunks + 1];
+        for (int x=0; x<width; x++) {
+            if (x % TileMap.CHUNK_WIDTH == 0) {
+                spawnIndex[x / TileMap.CHUNK_WIDTH] = spawns.size();
+            }
+            for (int y=0; y<height; y++) {
+                char ch = getChar(lines, x, y);
+                if (ch != ' ' && getTileId(ch) == TileMap.EMPTY_TILE) {
+                    spawns.add(new int[] { x, y, ch });
+                }
+            }
+        }
+        spawnIndex[numChunks] = spawns.size();
+
+        // write to a temporary file first, so a failed conversion
+        // never leaves a broken map behind
+        File tempFile = new File(binaryFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MapFile.MAGIC);
+            out.writeShort(MapFile.VERSION);
+            out.writeShort(numTiles);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(spawns.size());
+            for (int i=0; i<spawnIndex.length; i++) {
+                out.writeInt(spawnIndex[i]);
+            }
+            for (int i=0; i<spawns.size(); i++) {
+                int[] spawn = spawns.get(i);
+                out.writeInt(spawn[0]);
+                out.writeShort(spawn[1]);
+                out.writeByte(spawn[2]);
+                out.writeByte(0);
+            }
+            for (int chunk=0; chunk<numChunks; chunk++) {
+                int firstX = chunk * TileMap.CHUNK_WIDTH;
+                for (int y=0; y<height; y++) {
+                    for (int i=0; i<TileMap.CHUNK_WIDTH; i++) {
+                        out.writeShort(getTileId(
+                            getChar(lines, firstX + i, y)));
+                    }
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+
+        if (binaryFile.exists() && !binaryFile.delete()) {
+            tempFile.delete();
+            throw new IOException("Couldn't replace " + binaryFile);
+        }
+        if (!tempFile.renameTo(binaryFile)) {
+            tempFile.delete();
+            throw new IOException("Couldn't write " + binaryFile);
+        }
+    }
+
+    private char getChar(ArrayList<String> lines, int x, int y) {
+        String line = lines.get(y);
+        return (x < line.length()) ? line.charAt(x) : ' ';
+    }
+}
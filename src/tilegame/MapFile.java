@@ -0,0 +1,171 @@
+package tilegame;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+    The MapFile class reads the binary map format written by
+    MapConverter. The file is memory-mapped, so opening a map
+    takes about the same time no matter how big it is, and the
+    tiles of a chunk are copied straight out of the mapped file.
+    <p>The format (big-endian) is:<pre>
+    int     magic ("TMAP")
+    short   version
+    short   number of tile images the map was converted for
+    int     width, in tiles
+    int     height, in tiles
+    int     number of spawns
+    int[]   index of the first spawn in each chunk, plus the
+            total number of spawns (chunks + 1 entries)
+    spawns  sorted by x: int x, short y, byte type, byte unused
+    short[] tile ids, chunk by chunk, each chunk row by row,
+            TileMap.CHUNK_WIDTH columns wide
+    </pre>
+*/
+public class MapFile {
+
+    public static final int MAGIC = 0x544D4150;
+    public static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 20;
+    static final int SPAWN_SIZE = 8;
+
+    private ByteBuffer buffer;
+    private int width;
+    private int height;
+    private int numChunks;
+    private int spawnCount;
+    private int spawnIndexOffset;
+    private int spawnOffset;
+    private int tileOffset;
+
+    /**
+        Opens and memory-maps a binary map file.
+    */
+    public MapFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer mapped = channel.map(
+                FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer = mapped;
+        }
+        finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+
+        if (buffer.capacity() < HEADER_SIZE ||
+            buffer.getInt(0) != MAGIC ||
+            buffer.getShort(4) != VERSION)
+        {
+            throw new IOException("Not a map file: " + file);
+        }
+        width = buffer.getInt(8);
+        height = buffer.getInt(12);
+        spawnCount = buffer.getInt(16);
+        numChunks = getNumChunks(width);
+
+        spawnIndexOffset = HEADER_SIZE;
+        spawnOffset = spawnIndexOffset + (numChunks + 1) * 4;
+        tileOffset = spawnOffset + spawnCount * SPAWN_SIZE;
+        long size = tileOffset +
+            2L * numChunks * TileMap.CHUNK_WIDTH * height;
+        if (buffer.capacity() < size) {
+            throw new IOException("Map file is truncated: " + file);
+        }
+    }
+
+    /**
+        Checks the header of a binary map file, without mapping
+        it: returns true if it's a map file of this version,
+        converted for the specified number of tile images. A file
+        that is mapped can't be replaced on some systems, so check
+        this before converting the map again.
+    */
+    public static boolean isCurrent(File file, int numTiles) {
+        try {
+            DataInputStream in = new DataInputStream(
+                new FileInputStream(file));
+            try {
+                return (in.readInt() == MAGIC &&
+                    in.readShort() == VERSION &&
+                    in.readShort() == numTiles);
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ex) {
+            // missing or truncated
+            return false;
+        }
+    }
+
+    static int getNumChunks(int width) {
+        return (width + TileMap.CHUNK_WIDTH - 1) /
+            TileMap.CHUNK_WIDTH;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getNumChunks() {
+        return numChunks;
+    }
+
+    /**
+        Copies the tile ids of a chunk into an array of
+        TileMap.CHUNK_WIDTH * height tiles.
+    */
+    public void readTiles(int chunk, short[] tiles) {
+        int chunkSize = TileMap.CHUNK_WIDTH * height;
+        // use a duplicate, so chunks can be read on any thread
+        ByteBuffer view = buffer.duplicate();
+        view.position(tileOffset + 2 * chunk * chunkSize);
+        ShortBuffer shorts = view.asShortBuffer();
+        shorts.get(tiles, 0, chunkSize);
+    }
+
+    /**
+        Gets the index of the first spawn in a chunk.
+    */
+    public int getFirstSpawn(int chunk) {
+        return buffer.getInt(spawnIndexOffset + chunk * 4);
+    }
+
+    /**
+        Gets the index after the last spawn in a chunk.
+    */
+    public int getLastSpawn(int chunk) {
+        return buffer.getInt(spawnIndexOffset + (chunk + 1) * 4);
+    }
+
+    public int getSpawnX(int spawn) {
+        return buffer.getInt(spawnOffset + spawn * SPAWN_SIZE);
+    }
+
+    public int getSpawnY(int spawn) {
+        return buffer.getShort(spawnOffset + spawn * SPAWN_SIZE + 4);
+    }
+
+    /**
+        Gets the map character of a spawn, like 'o' for a coin.
+    */
+    public char getSpawnType(int spawn) {
+        return (char)(buffer.get(
+            spawnOffset + spawn * SPAWN_SIZE + 6) & 0xff);
+    }
+}
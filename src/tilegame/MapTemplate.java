@@ -0,0 +1,107 @@
+package tilegame;
+
+/**
+    The MapTemplate class is a parsed map kept in memory: the tile
+    ids of every chunk and the list of spawns. It never changes
+    once created, so a new TileMap can be made from it at any time
+    (for example, when the player dies and the map starts over)
+    by copying the tiles and creating the spawned Sprites, without
+    touching the disk.
+*/
+public class MapTemplate {
+
+    private final int width;
+    private final int height;
+    private final long lastModified;
+    private final short[][] chunkTiles;
+    private final int[] spawnIndex;
+    private final int[] spawnX;
+    private final int[] spawnY;
+    private final char[] spawnType;
+
+    /**
+        Creates a new MapTemplate with the contents of a binary
+        map file. The lastModified time is that of the map's text
+        file, to tell when the template is out of date.
+    */
+    public MapTemplate(MapFile mapFile, long lastModified) {
+        this.width = mapFile.getWidth();
+        this.height = mapFile.getHeight();
+        this.lastModified = lastModified;
+
+        int numChunks = mapFile.getNumChunks();
+        chunkTiles = new short[numChunks][];
+        spawnIndex = new int[numChunks + 1];
+        for (int i=0; i<numChunks; i++) {
+            chunkTiles[i] = new short[TileMap.CHUNK_WIDTH * height];
+            mapFile.readTiles(i, chunkTiles[i]);
+            spawnIndex[i] = mapFile.getFirstSpawn(i);
+        }
+        int numSpawns = (numChunks > 0) ?
+            mapFile.getLastSpawn(numChunks - 1) : 0;
+        spawnIndex[numChunks] = numSpawns;
+
+        spawnX = new int[numSpawns];
+        spawnY = new int[numSpawns];
+        spawnType = new char[numSpawns];
+        for (int i=0; i<numSpawns; i++) {
+            spawnX[i] = mapFile.getSpawnX(i);
+            spawnY[i] = mapFile.getSpawnY(i);
+            spawnType[i] = mapFile.getSpawnType(i);
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+        Gets the modification time of the text file this template
+        was made from.
+    */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+        Copies the tile ids of a chunk into an array of
+        TileMap.CHUNK_WIDTH * height tiles.
+    */
+    public void copyTiles(int chunk, short[] tiles) {
+        System.arraycopy(chunkTiles[chunk], 0, tiles, 0,
+            chunkTiles[chunk].length);
+    }
+
+    /**
+        Gets the index of the first spawn in a chunk.
+    */
+    public int getFirstSpawn(int chunk) {
+        return spawnIndex[chunk];
+    }
+
+    /**
+        Gets the index after the last spawn in a chunk.
+    */
+    public int getLastSpawn(int chunk) {
+        return spawnIndex[chunk + 1];
+    }
+
+    public int getSpawnX(int spawn) {
+        return spawnX[spawn];
+    }
+
+    public int getSpawnY(int spawn) {
+        return spawnY[spawn];
+    }
+
+    /**
+        Gets the map character of a spawn, like 'o' for a coin.
+    */
+    public char getSpawnType(int spawn) {
+        return spawnType[spawn];
+    }
+}
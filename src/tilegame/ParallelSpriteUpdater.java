@@ -0,0 +1,193 @@
+package tilegame;
+
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import graphics.Sprite;
+
+/**
+    The ParallelSpriteUpdater class updates the active Sprites of a
+    TileMap on a ForkJoinPool. Creatures only collide with the
+    tiles, which don't change during an update, so each one can be
+    updated on its own thread. The Sprites are grouped by regions
+    of tile columns, so each task works on a nearby part of the
+    map.
+    <p>Anything that changes shared state is left for a merge step
+    on the calling thread: removing dead Sprites and moving Sprites
+    in the SpriteGrid. The merge goes in index order, so the result
+    is the same as updating the Sprites one at a time.
+*/
+public class ParallelSpriteUpdater {
+
+    // width in bits of a region, in tiles (16 tiles)
+    private static final int REGION_BITS = 4;
+
+    // with fewer active Sprites than this, the Sprites are
+    // updated on the calling thread
+    private static final int MIN_SPRITES = 512;
+
+    // a task with this many Sprites or fewer isn't split
+    private static final int MIN_TASK_SPRITES = 64;
+
+    private GameManager game;
+    private ForkJoinPool pool;
+    private long elapsedTime;
+
+    // Sprite indices sorted by region, and where each region
+    // starts in the sorted order
+    private int[] order = new int[0];
+    private int[] regionStart = new int[0];
+    private int[] spriteRegion = new int[0];
+
+    // state before the update, for the merge
+    private float[] oldX = new float[0];
+    private float[] oldY = new float[0];
+    private boolean[] dead = new boolean[0];
+    private Sprite[] sprites = new Sprite[0];
+
+    /**
+        Creates a new ParallelSpriteUpdater that uses one thread
+        per available processor.
+    */
+    public ParallelSpriteUpdater(GameManager game) {
+        this(game, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelSpriteUpdater(GameManager game, int parallelism) {
+        this.game = game;
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+        Updates the active Sprites of the map. Returns false, and
+        does nothing, if there are too few of them to be worth
+        updating in parallel, or if the updater was closed.
+    */
+    public boolean update(TileMap map, long elapsedTime) {
+        int count = map.getActiveSpriteCount();
+        if (count < MIN_SPRITES || pool.isShutdown()) {
+            return false;
+        }
+        this.elapsedTime = elapsedTime;
+        ensureCapacity(count);
+        int numRegions = sortByRegion(map, count);
+
+        // update
+        pool.invoke(new RegionTask(0, numRegions));
+
+        // merge
+        map.beginIteration();
+        for (int i=0; i<count; i++) {
+            Sprite sprite = sprites[i];
+            if (dead[i]) {
+                game.removeDeadSprite(map, sprite);
+            }
+            else {
+                map.moveSprite(sprite, oldX[i], oldY[i]);
+            }
+            sprites[i] = null;
+        }
+        map.endIteration();
+        return true;
+    }
+
+    /**
+        Shuts down the threads.
+    */
+    public void close() {
+        pool.shutdown();
+    }
+
+    private void ensureCapacity(int count) {
+        if (order.length < count) {
+            int capacity = Math.max(count, order.length * 2);
+            order = new int[capacity];
+            spriteRegion = new int[capacity];
+            oldX = new float[capacity];
+            oldY = new float[capacity];
+            dead = new boolean[capacity];
+            sprites = new Sprite[capacity];
+        }
+    }
+
+    /**
+        Records the state of the Sprites and sorts their indices by
+        region (a counting sort). Returns the number of regions.
+    */
+    private int sortByRegion(TileMap map, int count) {
+        int numRegions =
+            (map.getWidth() >> REGION_BITS) + 1;
+        if (regionStart.length < numRegions + 1) {
+            regionStart = new int[numRegions + 1];
+        }
+        Arrays.fill(regionStart, 0, numRegions + 1, 0);
+
+        for (int i=0; i<count; i++) {
+            Sprite sprite = map.getSprite(i);
+            sprites[i] = sprite;
+            oldX[i] = sprite.getX();
+            oldY[i] = sprite.getY();
+            dead[i] = GameManager.isDead(sprite);
+            int region = TileMapRenderer.pixelsToTiles(oldX[i]) >>
+                REGION_BITS;
+            region = Math.max(0, Math.min(region, numRegions - 1));
+            spriteRegion[i] = region;
+            regionStart[region + 1]++;
+        }
+        for (int i=0; i<numRegions; i++) {
+            regionStart[i + 1] += regionStart[i];
+        }
+        // place each index, using the region ends as cursors
+        for (int i=0; i<count; i++) {
+            order[regionStart[spriteRegion[i]]++] = i;
+        }
+        // the cursors now point at the region ends; shift them
+        // back to the starts
+        for (int i=numRegions; i>0; i--) {
+            regionStart[i] = regionStart[i - 1];
+        }
+        regionStart[0] = 0;
+        return numRegions;
+    }
+
+    /**
+        Updates the Sprites in a range of regions, splitting the
+        range in two if it has many Sprites.
+    */
+    private class RegionTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private int firstRegion;
+        private int endRegion;
+
+        public RegionTask(int firstRegion, int endRegion) {
+            this.firstRegion = firstRegion;
+            this.endRegion = endRegion;
+        }
+
+        protected void compute() {
+            int start = regionStart[firstRegion];
+            int end = regionStart[endRegion];
+            if (end - start > MIN_TASK_SPRITES &&
+                endRegion - firstRegion > 1)
+            {
+                int middle = (firstRegion + endRegion) >>> 1;
+                invokeAll(new RegionTask(firstRegion, middle),
+                    new RegionTask(middle, endRegion));
+                return;
+            }
+
+            Point point = new Point();
+            for (int i=start; i<end; i++) {
+                int index = order[i];
+                if (!dead[index]) {
+                    game.updateSprite(sprites[index], elapsedTime,
+                        point);
+                }
+            }
+        }
+    }
+}
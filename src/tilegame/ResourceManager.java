@@ -3,13 +3,28 @@ package tilegame;
 import java.awt.*
 
 ;
-import java.awt.event.KeyEvent;
 import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import javax.swing.ImageIcon;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import javax.imageio.ImageIO;
 import graphics.*;
 import tilegame.sprites.*;
+import util.LoadingProgress;
+import util.ThreadPool;
 
 
 
@@ -17,12 +32,100 @@ import tilegame.sprites.*;
     The ResourceManager class loads and manages tile Images and
      Sprites used in the game. Game Sprites are cloned from
      the original Sprites.
+     <p>If the GraphicsConfiguration is null (headless mode),
+     images are decoded with ImageIO and no display is needed.
+     <p>The tile and sprite images are packed into a TextureAtlas
+     (images/atlas.png and images/atlas.txt), which is made on the
+     first run and again whenever an image is added or changed.
+     <p>With a GraphicsConfiguration, every image is converted to
+     a compatible image, and converted again if the
+     GraphicsConfiguration changes.
+     <p>While the ResourceManager is created, images are decoded
+     and transformed on a pool of worker threads, one per
+     processor, and the work done is counted in a LoadingProgress.
 */
 public class ResourceManager{
 
+    // maps wider than this (in tiles) are streamed in chunks
+    private static final int STREAMING_MAP_WIDTH =
+        8 * TileMap.CHUNK_WIDTH;
+
+    // number of parsed maps kept in memory
+    private static final int MAX_CACHED_MAPS = 4;
+
+    private static final File ATLAS_IMAGE = new File("images/atlas.png");
+    private static final File ATLAS_TABLE = new File("images/atlas.txt");
+    // mirrored and flipped images made on earlier runs
+    private static final File VARIANT_CACHE_IMAGE =
+        new File("cache/variants.png");
+    private static final File VARIANT_CACHE_TABLE =
+        new File("cache/variants.txt");
+    // names of the transforms made by makeVariants()
+    private static final String[] VARIANTS = {
+        "mirror", "flip", "mirror-flip"
+    };
+
+    private static final String[] CREATURE_IMAGES = {
+        "player1.png", "player2.png", "player3.png", "player4.png",
+        "player5.png", "player6.png", "player7.png", "player8.png",
+        "bat1.png", "bat2.png", "bat3.png", "bat4.png",
+        "grub1.png", "grub2.png",
+        "hound1.png", "hound2.png", "hound3.png", "hound4.png",
+        "hound5.png",
+        "jump1.png", "jump2.png"
+    };
+
+    // images too big to be worth packing
+    private static final String[] UNPACKED_IMAGES = {
+        "background.png", ATLAS_IMAGE.getName()
+    };
+
     private ArrayList tiles;
+    // tile Images indexed by tile id, shared by all maps
+    private volatile Image[] tilePalette;
     private int currentMap;
     private GraphicsConfiguration gc;
+    // decodes and transforms images while loading
+    private ThreadPool workers;
+    private LoadingProgress progress;
+    // the images in images/, one atlas per Transparency (empty if
+    // they aren't packed)
+    private TextureAtlas[] atlases = new TextureAtlas[0];
+    // the mirrored and flipped creature images
+    private TextureAtlas[] variantAtlases = new TextureAtlas[0];
+    // the atlases as packed, before conversion
+    private TextureAtlas packedAtlas;
+    private TextureAtlas packedVariants;
+    // converted images loaded outside the atlas, mapped to the
+    // images they were converted from
+    private IdentityHashMap<Image, Image> imageSources =
+        new IdentityHashMap<Image, Image>();
+    // the Animations of the Sprites used for cloning, whose
+    // frames are shared by all the clones
+    private ArrayList<Animation> animations = new ArrayList<Animation>();
+    // every image replaced by a GraphicsConfiguration change,
+    // mapped to its current version (images don't override
+    // equals(), so this compares them by identity)
+    private WeakHashMap<Image, Image> convertedImages =
+        new WeakHashMap<Image, Image>();
+    // counts the GraphicsConfiguration changes
+    private volatile int imageGeneration;
+    // loads chunks of streamed maps in the background
+    private ThreadPool loader;
+    // loads the next map in the background
+    private ThreadPool prefetcher;
+    private FutureTask<NextMap> prefetch;
+    // parsed maps by file name, least recently used first
+    private LinkedHashMap<String, MapTemplate> templates;
+    // whether maps keep Sprite positions in a BodyStore
+    private boolean batchedPhysics = true;
+
+    // factories for the Sprites in maps, indexed by map character
+    private SpriteFactory[] spriteFactories = new SpriteFactory[128];
+    // pools of reusable Sprites, by Sprite class
+    private IdentityHashMap<Class<? extends Sprite>, SpritePool> spritePools =
+        new IdentityHashMap<Class<? extends Sprite>, SpritePool>();
+    private ArrayList<Sprite> releasedSprites = new ArrayList<Sprite>();
 
     // Sprites used for cloning
     private Sprite playerSprite;
@@ -38,18 +141,626 @@ public class ResourceManager{
  
  
     public ResourceManager(GraphicsConfiguration gc) {
+        this(gc, new LoadingProgress());
+    }
+
+
+    /**
+        Creates a new ResourceManager, counting the loading work
+        in the specified LoadingProgress, so another thread can
+        show how far along it is.
+    */
+    public ResourceManager(GraphicsConfiguration gc,
+        LoadingProgress progress)
+    {
         this.gc = gc;
-        loadTileImages();
-        loadCreatureSprites();
-        loadItemSprites();
+        this.progress = progress;
+        loader = new ThreadPool(1);
+        prefetcher = new ThreadPool(1);
+        templates = new LinkedHashMap<String, MapTemplate>(
+            MAX_CACHED_MAPS, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(
+                Map.Entry<String, MapTemplate> eldest)
+            {
+                return size() > MAX_CACHED_MAPS;
+            }
+        };
+        workers = new ThreadPool(
+            Runtime.getRuntime().availableProcessors());
+        try {
+            packedAtlas = loadAtlas();
+            atlases = convertAtlas(packedAtlas);
+            loadTileImages();
+            loadCreatureSprites();
+            loadItemSprites();
+        }
+        finally {
+            // wait for any tasks left, like writing the atlas
+            workers.join();
+            workers = null;
+        }
+        registerPrototype('o', coinSprite);
+        registerPrototype('*', doorSprite);
+        registerPrototype('1', grubSprite);
+        registerPrototype('2', batSprite);
+        registerPrototype('3', houndSprite);
         
 
     }
     
     
+    /**
+        Sets whether maps loaded from now on keep the positions and
+        velocities of their Sprites in a BodyStore, so they can be
+        integrated in a batch. On by default.
+    */
+    public void setBatchedPhysics(boolean batchedPhysics) {
+        this.batchedPhysics = batchedPhysics;
+    }
+
+
+    /**
+        Stops the threads that load the chunks of streamed maps
+        and prefetch the next map. Call when the game stops.
+    */
+    public void close() {
+        if (prefetch != null) {
+            prefetch.cancel(false);
+            prefetch = null;
+        }
+        prefetcher.close();
+        loader.close();
+    }
+
+
+    /**
+        Runs a task on the worker pool, and counts it in the
+        LoadingProgress when it's done. Only used while loading.
+    */
+    private <T> FutureTask<T> runWorkerTask(final Callable<T> task) {
+        progress.addTasks(1);
+        FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+            public T call() throws Exception {
+                try {
+                    return task.call();
+                }
+                finally {
+                    progress.taskDone();
+                }
+            }
+        });
+        workers.runTask(future);
+        return future;
+    }
+
+
+    /**
+        Waits for a task run by runWorkerTask() and gets its
+        result.
+    */
+    private static <T> T getResult(FutureTask<T> future) {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading");
+        }
+        catch (ExecutionException ex) {
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+
+    /**
+        Sets the SpriteFactory for a map character, replacing any
+        factory already set for it.
+    */
+    public void registerSpriteFactory(char ch,
+        SpriteFactory factory)
+    {
+        if (ch >= spriteFactories.length) {
+            throw new IllegalArgumentException(
+                "Not an ASCII character: " + ch);
+        }
+        spriteFactories[ch] = factory;
+    }
+
+
+    /**
+        Gets the SpriteFactory for a map character, or null if it
+        doesn't stand for a Sprite.
+    */
+    public SpriteFactory getSpriteFactory(char ch) {
+        return (ch < spriteFactories.length) ?
+            spriteFactories[ch] : null;
+    }
+
+
+    /**
+        Sets a SpriteFactory for a map character that reuses
+        released Sprites of the prototype's class, or clones the
+        prototype.
+    */
+    private void registerPrototype(char ch, Sprite prototype) {
+        SpritePool pool = new SpritePool(prototype);
+        spritePools.put(pool.getSpriteClass(), pool);
+        registerSpriteFactory(ch, pool);
+    }
+
+
+    /**
+        Gives a Sprite that was removed from its map back to its
+        pool, to be reused by the next map. Sprites without a pool
+        are left to the garbage collector.
+    */
+    public void releaseSprite(Sprite sprite) {
+        SpritePool pool = spritePools.get(sprite.getClass());
+        if (pool != null) {
+            pool.release(sprite);
+        }
+    }
+
+
+    /**
+        Removes all the Sprites from a map that is no longer
+        needed, and gives them back to their pools. Call from the
+        game thread.
+    */
+    public void releaseMap(TileMap map) {
+        map.removeAllSprites(releasedSprites);
+        for (int i=0; i<releasedSprites.size(); i++) {
+            releaseSprite(releasedSprites.get(i));
+        }
+        releasedSprites.clear();
+    }
+
+
+    /**
+        Gets the texture atlases that the tile and sprite images
+        are regions of.
+    */
+    public TextureAtlas[] getAtlases() {
+        TextureAtlas[] all =
+            new TextureAtlas[atlases.length + variantAtlases.length];
+        System.arraycopy(atlases, 0, all, 0, atlases.length);
+        System.arraycopy(variantAtlases, 0, all, atlases.length,
+            variantAtlases.length);
+        return all;
+    }
+
+
+    /**
+        Gets the image of a named region from the first atlas that
+        has it, or null if none does.
+    */
+    private static Image getImage(TextureAtlas[] atlases,
+        String name)
+    {
+        for (int i=0; i<atlases.length; i++) {
+            Image image = atlases[i].getImage(name);
+            if (image != null) {
+                return image;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+        Loads the atlas of the images in images/, packing it first
+        if it's missing or older than any of the images. Returns
+        null if the images can't be packed.
+    */
+    private TextureAtlas loadAtlas() {
+        String[] names = new File("images").list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".png") &&
+                    !Arrays.asList(UNPACKED_IMAGES).contains(name);
+            }
+        });
+        if (names == null || names.length == 0) {
+            return null;
+        }
+        Arrays.sort(names);
+
+        TextureAtlas packed = null;
+        if (isAtlasCurrent(names)) {
+            progress.addTasks(1);
+            try {
+                packed = TextureAtlas.read(ATLAS_IMAGE, ATLAS_TABLE);
+                if (!Arrays.equals(packed.getNames(), names)) {
+                    packed = null;
+                }
+            }
+            catch (IOException ex) {
+                // pack it again
+                packed = null;
+            }
+            progress.taskDone();
+        }
+
+        if (packed == null) {
+            // decode the images in parallel
+            ArrayList<FutureTask<BufferedImage>> tasks =
+                new ArrayList<FutureTask<BufferedImage>>();
+            for (int i=0; i<names.length; i++) {
+                final File file = new File("images/" + names[i]);
+                tasks.add(runWorkerTask(new Callable<BufferedImage>() {
+                    public BufferedImage call() {
+                        try {
+                            return ImageIO.read(file);
+                        }
+                        catch (IOException ex) {
+                            return null;
+                        }
+                    }
+                }));
+            }
+            Image[] images = new Image[names.length];
+            for (int i=0; i<names.length; i++) {
+                images[i] = getResult(tasks.get(i));
+                if (images[i] == null) {
+                    System.err.println("Couldn't pack " + names[i]);
+                    return null;
+                }
+            }
+            packed = TextureAtlas.pack(names, images);
+
+            // write it while the rest is loading
+            final TextureAtlas newAtlas = packed;
+            runWorkerTask(new Callable<Void>() {
+                public Void call() {
+                    try {
+                        newAtlas.write(ATLAS_IMAGE, ATLAS_TABLE);
+                    }
+                    catch (IOException ex) {
+                        // use the atlas anyway; it's packed again
+                        // next run
+                        ex.printStackTrace();
+                    }
+                    return null;
+                }
+            });
+        }
+
+        return packed;
+    }
+
+
+    /**
+        Converts an atlas for the GraphicsConfiguration, if there
+        is one, into one atlas per Transparency.
+    */
+    private TextureAtlas[] convertAtlas(TextureAtlas packed) {
+        if (packed == null) {
+            return new TextureAtlas[0];
+        }
+        if (gc == null) {
+            return new TextureAtlas[] { packed };
+        }
+        progress.addTasks(1);
+        TextureAtlas[] converted = packed.toCompatible(gc);
+        progress.taskDone();
+        return converted;
+    }
+
+
+    /**
+        Converts all images for a new GraphicsConfiguration, for
+        example after the window is moved to another screen. The
+        atlases, the tile palette and the frames of all Sprites
+        are replaced. Other images, like the palettes of loaded
+        maps, can be updated with convertImage(). Returns false if
+        the GraphicsConfiguration didn't change. Call from the
+        thread that draws, since the images it draws change.
+    */
+    public synchronized boolean setGraphicsConfiguration(
+        GraphicsConfiguration gc)
+    {
+        if (gc == null || gc == this.gc) {
+            return false;
+        }
+        this.gc = gc;
+
+        IdentityHashMap<Image, Image> replacements =
+            new IdentityHashMap<Image, Image>();
+        atlases = replaceAtlases(atlases, packedAtlas, replacements);
+        variantAtlases = replaceAtlases(variantAtlases, packedVariants,
+            replacements);
+        IdentityHashMap<Image, Image> newSources =
+            new IdentityHashMap<Image, Image>();
+        Iterator<Map.Entry<Image, Image>> i =
+            imageSources.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<Image, Image> entry = i.next();
+            Image source = entry.getValue();
+            Image converted = ImageConverter.toCompatible(source, gc);
+            replacements.put(entry.getKey(), converted);
+            newSources.put(converted, source);
+        }
+        imageSources = newSources;
+
+        // images replaced earlier now map to the newest version,
+        // so things that missed a change are still converted
+        Iterator<Map.Entry<Image, Image>> j =
+            convertedImages.entrySet().iterator();
+        while (j.hasNext()) {
+            Map.Entry<Image, Image> entry = j.next();
+            Image newest = replacements.get(entry.getValue());
+            if (newest != null) {
+                entry.setValue(newest);
+            }
+        }
+        convertedImages.putAll(replacements);
+
+        tilePalette = convertImages(tilePalette);
+        for (int k=0; k<animations.size(); k++) {
+            animations.get(k).replaceImages(replacements);
+        }
+        imageGeneration++;
+        return true;
+    }
+
+
+    /**
+        Gets a number that changes when the images are converted
+        for a new GraphicsConfiguration. Anything taken from the
+        Sprites after the number changed has the new images.
+    */
+    public int getImageGeneration() {
+        return imageGeneration;
+    }
+
+
+    /**
+        Converts a packed atlas for the GraphicsConfiguration, and
+        maps each image of the old atlases to the new ones.
+    */
+    private TextureAtlas[] replaceAtlases(TextureAtlas[] oldAtlases,
+        TextureAtlas packed, Map<Image, Image> replacements)
+    {
+        if (packed == null) {
+            return oldAtlases;
+        }
+        TextureAtlas[] newAtlases = packed.toCompatible(gc);
+        String[] names = packed.getNames();
+        for (int i=0; i<names.length; i++) {
+            replacements.put(getImage(oldAtlases, names[i]),
+                getImage(newAtlases, names[i]));
+        }
+        return newAtlases;
+    }
+
+
+    /**
+        Gets the current version of an image replaced by any
+        GraphicsConfiguration change, or the same image if it
+        wasn't replaced.
+    */
+    public synchronized Image convertImage(Image image) {
+        Image converted = convertedImages.get(image);
+        return (converted != null) ? converted : image;
+    }
+
+
+    /**
+        Converts an array of images with convertImage(). Returns
+        the same array if none of them was replaced.
+    */
+    public synchronized Image[] convertImages(Image[] images) {
+        Image[] newImages = images;
+        for (int i=0; i<images.length; i++) {
+            Image converted = convertImage(images[i]);
+            if (converted != images[i]) {
+                if (newImages == images) {
+                    newImages = images.clone();
+                }
+                newImages[i] = converted;
+            }
+        }
+        return newImages;
+    }
+
+
+    /**
+        Checks if the atlas files exist and are newer than all of
+        the named images.
+    */
+    private boolean isAtlasCurrent(String[] names) {
+        long packedTime = Math.min(ATLAS_IMAGE.lastModified(),
+            ATLAS_TABLE.lastModified());
+        if (packedTime == 0) {
+            return false;
+        }
+        for (int i=0; i<names.length; i++) {
+            if (new File("images/" + names[i]).lastModified() >
+                packedTime)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     public Image loadImage(String name) {
-        String filename = "images/" + name;
-        return new ImageIcon(filename).getImage();
+        Image packed = getImage(atlases, name);
+        if (packed != null) {
+            return packed;
+        }
+        BufferedImage image;
+        try {
+            image = ImageIO.read(new File("images/" + name));
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+        if (image == null || gc == null) {
+            return image;
+        }
+        Image converted = ImageConverter.toCompatible(image, gc);
+        imageSources.put(converted, image);
+        return converted;
+    }
+
+
+    /**
+        Gets the mirrored, flipped, and mirrored and flipped
+        versions of images, in that order, packed in the variant
+        atlas. They come from the variant cache if it has them for
+        the current contents of the image files; the rest are made
+        in parallel, and the cache is written again for the next
+        run. Cache entries are named by the SHA-1 hash of the image
+        file and the name of the transform.
+    */
+    private Image[][] loadVariants(String[] names, Image[] images) {
+        String[][] keys = new String[VARIANTS.length][names.length];
+        for (int i=0; i<names.length; i++) {
+            String hash = getFileHash(new File("images/" + names[i]));
+            for (int v=0; v<VARIANTS.length; v++) {
+                keys[v][i] = hash + "." + VARIANTS[v];
+            }
+        }
+
+        TextureAtlas cache = null;
+        progress.addTasks(1);
+        try {
+            cache = TextureAtlas.read(VARIANT_CACHE_IMAGE,
+                VARIANT_CACHE_TABLE);
+        }
+        catch (IOException ex) {
+            // no cache yet, or it's damaged; make a new one
+        }
+        progress.taskDone();
+
+        // make the variants that aren't in the cache
+        ArrayList<FutureTask<Image[]>> tasks =
+            new ArrayList<FutureTask<Image[]>>();
+        for (int i=0; i<names.length; i++) {
+            FutureTask<Image[]> task = null;
+            boolean cached = (cache != null);
+            for (int v=0; v<VARIANTS.length && cached; v++) {
+                cached = (cache.getImage(keys[v][i]) != null);
+            }
+            if (!cached) {
+                final Image image = images[i];
+                task = runWorkerTask(new Callable<Image[]>() {
+                    public Image[] call() {
+                        return makeVariants(image);
+                    }
+                });
+            }
+            tasks.add(task);
+        }
+
+        String[] packedNames = new String[VARIANTS.length * names.length];
+        Image[] packedImages = new Image[packedNames.length];
+        boolean changed = false;
+        for (int i=0; i<names.length; i++) {
+            Image[] made = null;
+            if (tasks.get(i) != null) {
+                made = getResult(tasks.get(i));
+                changed = true;
+            }
+            for (int v=0; v<VARIANTS.length; v++) {
+                int index = v * names.length + i;
+                packedNames[index] = keys[v][i];
+                packedImages[index] = (made != null) ?
+                    made[v] : cache.getImage(keys[v][i]);
+            }
+        }
+
+        if (!changed && cache != null &&
+            new HashSet<String>(Arrays.asList(packedNames)).equals(
+            new HashSet<String>(Arrays.asList(cache.getNames()))))
+        {
+            // the cache has exactly these variants
+            packedVariants = cache;
+        }
+        else {
+            packedVariants = TextureAtlas.pack(packedNames,
+                packedImages);
+            final TextureAtlas newCache = packedVariants;
+            runWorkerTask(new Callable<Void>() {
+                public Void call() {
+                    try {
+                        VARIANT_CACHE_IMAGE.getParentFile().mkdirs();
+                        newCache.write(VARIANT_CACHE_IMAGE,
+                            VARIANT_CACHE_TABLE);
+                    }
+                    catch (IOException ex) {
+                        // not cached; they're made again next run
+                        ex.printStackTrace();
+                    }
+                    return null;
+                }
+            });
+        }
+        variantAtlases = convertAtlas(packedVariants);
+
+        Image[][] variants = new Image[VARIANTS.length][names.length];
+        for (int v=0; v<VARIANTS.length; v++) {
+            for (int i=0; i<names.length; i++) {
+                variants[v][i] = getImage(variantAtlases, keys[v][i]);
+            }
+        }
+        return variants;
+    }
+
+
+    /**
+        Makes the mirrored, flipped, and mirrored and flipped
+        versions of an image.
+    */
+    private Image[] makeVariants(Image image) {
+        Image mirror = getMirrorImage(image);
+        return new Image[] {
+            mirror,
+            getFlippedImage(image),
+            getFlippedImage(mirror)
+        };
+    }
+
+
+    /**
+        Gets the SHA-1 hash of the contents of a file, in hex, or
+        the file name if it can't be read.
+    */
+    private static String getFileHash(File file) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[4096];
+                while (true) {
+                    int count = in.read(buffer);
+                    if (count == -1) {
+                        break;
+                    }
+                    digest.update(buffer, 0, count);
+                }
+            }
+            finally {
+                in.close();
+            }
+
+            StringBuffer hash = new StringBuffer();
+            byte[] bytes = digest.digest();
+            for (int i=0; i<bytes.length; i++) {
+                hash.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+                hash.append(Character.forDigit(bytes[i] & 0xf, 16));
+            }
+            return hash.toString();
+        }
+        catch (IOException ex) {
+            return file.getName();
+        }
+        catch (NoSuchAlgorithmException ex) {
+            return file.getName();
+        }
     }
 
 
@@ -60,19 +771,6 @@ public class ResourceManager{
     public Image getFlippedImage(Image image) {
         return getScaledImage(image, 1, -1);
     }
-   
-    
-    public KeyEvent keyPressed(KeyEvent e) {
-
-    	if (e.getKeyCode() == KeyEvent.VK_RIGHT) {
-            System.out.println("Right key pressed");
-            
-        }
-		return e;
-    }
-    
-    
-    
 
 
     private Image getScaledImage(Image image, float x, float y) {
@@ -84,11 +782,20 @@ public class ResourceManager{
             (x-1) * image.getWidth(null) / 2,
             (y-1) * image.getHeight(null) / 2);
 
-        // create a transparent (not translucent) image
-        Image newImage = gc.createCompatibleImage(
-            image.getWidth(null),
-            image.getHeight(null),
-            Transparency.BITMASK);
+        // create an image as transparent as the original
+        Image newImage;
+        if (gc != null) {
+            newImage = gc.createCompatibleImage(
+                image.getWidth(null),
+                image.getHeight(null),
+                ImageConverter.getTransparency(image));
+        }
+        else {
+            newImage = new BufferedImage(
+                image.getWidth(null),
+                image.getHeight(null),
+                BufferedImage.TYPE_INT_ARGB);
+        }
 
         // draw the transformed image
         Graphics2D g = (Graphics2D)newImage.getGraphics();
@@ -99,33 +806,80 @@ public class ResourceManager{
     }
 
 
-    public TileMap loadNextMap(){
-        TileMap map = null;
-        while (map == null) {
-            currentMap++;
-            
+    /**
+        Loads the next map, wrapping around to the first map after
+        the last one. The map is usually already loaded in the
+        background (see prefetchNextMap()), so this returns right
+        away. Returns null if there are no maps.
+    */
+    public TileMap loadNextMap() {
+        NextMap next = null;
+        if (prefetch != null) {
             try {
-                map = loadMap(
-                    "maps/map" + currentMap + ".txt");
-                
-                    Thread.sleep(200);                
-                } catch(InterruptedException ex) {
-                    Thread.currentThread().interrupt();            
+                next = prefetch.get();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException ex) {
+                ex.printStackTrace();
+            }
+            prefetch = null;
+        }
+        if (next == null) {
+            // not prefetched, or the prefetch failed
+            next = findNextMap(currentMap);
+        }
+        if (next == null) {
+            return null;
+        }
+
+        currentMap = next.number;
+        prefetchNextMap();
+        // the map may have been loaded before the images changed
+        next.map.setPalette(convertImages(next.map.getPalette()));
+        return next.map;
+    }
 
+
+    /**
+        Starts loading the map after the current one in the
+        background.
+    */
+    private void prefetchNextMap() {
+        final int number = currentMap;
+        prefetch = new FutureTask<NextMap>(new Callable<NextMap>() {
+            public NextMap call() {
+                return findNextMap(number);
+            }
+        });
+        prefetcher.runTask(prefetch);
+    }
+
+
+    /**
+        Loads the first map after the specified map number that
+        exists, wrapping around to the first map. Returns null if
+        there are no maps. This may be called from any thread: it
+        only reads the shared tile Images and Sprites.
+    */
+    private NextMap findNextMap(int number) {
+        while (true) {
+            number++;
+            try {
+                NextMap next = new NextMap();
+                next.number = number;
+                next.map = loadMap("maps/map" + number + ".txt");
+                return next;
             }
             catch (IOException ex) {
-                if (currentMap == 1) {
+                if (number == 1) {
                     // no maps to load!
                     return null;
                 }
-               
-                currentMap = 0;
-                map = null;
+                number = 0;
             }
         }
-        
-
-        return map;
     }
 
 
@@ -141,95 +895,279 @@ public class ResourceManager{
     }
 
 
+    /**
+        Loads a map. The text map file is converted to the binary
+        format the first time, or whenever it changes, and the
+        binary file is loaded from then on. If the conversion
+        fails, the text file is loaded instead. Maps that aren't
+        streamed are kept in memory as MapTemplates, so loading
+        them again is just a copy.
+    */
     private TileMap loadMap(String filename)
         throws IOException
     {
-        ArrayList lines = new ArrayList();
-        int width = 0;
-        int height = 0;
-
-        // read every line in the text file into the list
-        BufferedReader reader = new BufferedReader(
-            new FileReader(filename));
-        while (true) {
-            String line = reader.readLine();
-            // no more lines to read
-            if (line == null) {
-                reader.close();
-                break;
-            }
-
-            // add every line except for comments
-            if (!line.startsWith("#")) {
-                lines.add(line);
-                width = Math.max(width, line.length());
-            }
+        File textFile = new File(filename);
+        if (!textFile.exists()) {
+            throw new FileNotFoundException(filename);
         }
 
-        // parse the lines to create a TileEngine
-        height = lines.size();
-        TileMap newMap = new TileMap(width, height);
-        for (int y=0; y<height; y++) {
-            String line = (String)lines.get(y);
-            for (int x=0; x<line.length(); x++) {
-                char ch = line.charAt(x);
-
-                // check if the char represents tile A, B, C etc.
-                int tile = ch - 'A';
-                if (tile >= 0 && tile < tiles.size()) {
-                    newMap.setTile(x, y, (Image)tiles.get(tile));
-                }
+        TileMap newMap;
+        try {
+            newMap = loadBinaryMap(textFile);
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            newMap = loadTextMap(textFile);
+        }
 
-                // check if the char represents a sprite
-                else if (ch == 'o') {
-                    addSprite(newMap, coinSprite, x, y);
-                }
-                else if (ch == '*') {
-                    addSprite(newMap, doorSprite, x, y);
-                }
-                else if (ch == '1') {
-                    addSprite(newMap, grubSprite, x, y);
-                }
-                else if (ch == '2') {
-                    addSprite(newMap, batSprite, x, y);
-                }
-                else if (ch == '3') {
-                    addSprite(newMap, houndSprite, x, y);
-                }
-            }
+        if (batchedPhysics) {
+            newMap.setBodyStore(new BodyStore());
         }
-        
 
         // add the player to the map
         Sprite player = (Sprite)playerSprite.clone();
         player.setX(TileMapRenderer.tilesToPixels(2));
         player.setY(0);
         newMap.setPlayer(player);
+
+        // load the chunks around the player
+        newMap.loadChunks(TileMapRenderer.pixelsToTiles(player.getX()));
          
         return newMap;
     }
 
 
-    private void addSprite(TileMap map,
-        Sprite hostSprite, int tileX, int tileY)
+    /**
+        Opens the up-to-date binary map file for a text map file,
+        converting it if needed.
+    */
+    private MapFile openBinaryMap(File textFile) throws IOException {
+        File binaryFile = MapConverter.getBinaryFile(textFile);
+        // check before mapping, since a mapped file can't always
+        // be replaced
+        if (binaryFile.lastModified() < textFile.lastModified() ||
+            !MapFile.isCurrent(binaryFile, tiles.size()))
+        {
+            new MapConverter(tiles.size()).convert(textFile,
+                binaryFile);
+        }
+        return new MapFile(binaryFile);
+    }
+
+
+    private TileMap loadBinaryMap(File textFile)
+        throws IOException
     {
-        if (hostSprite != null) {
-            // clone the sprite from the "host"
-            Sprite sprite = (Sprite)hostSprite.clone();
+        MapTemplate template = getCachedTemplate(textFile);
+        if (template == null) {
+            MapFile mapFile = openBinaryMap(textFile);
+            int width = mapFile.getWidth();
+            int height = mapFile.getHeight();
+            if (width > STREAMING_MAP_WIDTH) {
+                // streamed maps are read from the mapped file as
+                // needed, so they aren't kept in memory
+                return new TileMap(width, height, tilePalette,
+                    new BinaryChunkSource(mapFile), loader);
+            }
+            template = new MapTemplate(mapFile,
+                textFile.lastModified());
+            synchronized (templates) {
+                templates.put(textFile.getPath(), template);
+            }
+        }
+        TileMap newMap = new TileMap(template.getWidth(),
+            template.getHeight(), tilePalette);
+        newMap.loadAll(new TemplateChunkSource(template));
+        return newMap;
+    }
 
-            // center the sprite
-            sprite.setX(
-                TileMapRenderer.tilesToPixels(tileX) +
-                (TileMapRenderer.tilesToPixels(1) -
-                sprite.getWidth()) / 2);
 
-            // bottom-justify the sprite
-            sprite.setY(
-                TileMapRenderer.tilesToPixels(tileY + 1) -
-                sprite.getHeight());
+    /**
+        Gets the MapTemplate of a text map file, or null if it
+        isn't cached or the file changed since.
+    */
+    private MapTemplate getCachedTemplate(File textFile) {
+        MapTemplate template;
+        synchronized (templates) {
+            template = templates.get(textFile.getPath());
+        }
+        if (template != null &&
+            template.getLastModified() != textFile.lastModified())
+        {
+            return null;
+        }
+        return template;
+    }
+
+
+    private TileMap loadTextMap(File textFile)
+        throws IOException
+    {
+        ArrayList<String> lines = MapConverter.readLines(textFile);
+        int width = 0;
+        int height = lines.size();
+        for (int y=0; y<height; y++) {
+            width = Math.max(width, lines.get(y).length());
+        }
+
+        TileMap.ChunkSource source = new TextChunkSource(lines);
+        if (width > STREAMING_MAP_WIDTH) {
+            // only parse the chunks as they're needed
+            return new TileMap(width, height, tilePalette,
+                source, loader);
+        }
+        TileMap newMap = new TileMap(width, height, tilePalette);
+        newMap.loadAll(source);
+        return newMap;
+    }
+
+
+    /**
+        Gets the tile id a map character represents, or
+        EMPTY_TILE if it isn't a tile.
+    */
+    private int getTileId(char ch) {
+        // check if the char represents tile A, B, C etc.
+        int tile = ch - 'A';
+        if (tile >= 0 && tile < tiles.size()) {
+            return tile + 1;
+        }
+        return TileMap.EMPTY_TILE;
+    }
+
+
+    /**
+        Creates the Sprite a map character represents, placed at
+        the specified tile, or returns null if the character
+        isn't a Sprite.
+    */
+    private Sprite createSprite(char ch, int tileX, int tileY) {
+        // check if the char represents a sprite
+        SpriteFactory factory = getSpriteFactory(ch);
+        if (factory == null) {
+            return null;
+        }
+        Sprite sprite = factory.createSprite();
+
+        // center the sprite
+        sprite.setX(
+            TileMapRenderer.tilesToPixels(tileX) +
+            (TileMapRenderer.tilesToPixels(1) -
+            sprite.getWidth()) / 2);
+
+        // bottom-justify the sprite
+        sprite.setY(
+            TileMapRenderer.tilesToPixels(tileY + 1) -
+            sprite.getHeight());
+
+        return sprite;
+    }
+
+
+    /**
+        A loaded map and its number.
+    */
+    private static class NextMap {
+        int number;
+        TileMap map;
+    }
+
+
+    /**
+        A ChunkSource that reads chunks from a memory-mapped
+        binary map file.
+    */
+    private class BinaryChunkSource implements TileMap.ChunkSource {
+
+        private MapFile mapFile;
+
+        public BinaryChunkSource(MapFile mapFile) {
+            this.mapFile = mapFile;
+        }
+
+        public void loadTiles(int chunk, short[] tiles) {
+            mapFile.readTiles(chunk, tiles);
+        }
+
+        public void loadSprites(int chunk, List<Sprite> sprites) {
+            int last = mapFile.getLastSpawn(chunk);
+            for (int i=mapFile.getFirstSpawn(chunk); i<last; i++) {
+                Sprite sprite = createSprite(mapFile.getSpawnType(i),
+                    mapFile.getSpawnX(i), mapFile.getSpawnY(i));
+                if (sprite != null) {
+                    sprites.add(sprite);
+                }
+            }
+        }
+    }
+
+
+    /**
+        A ChunkSource that copies chunks from a MapTemplate.
+    */
+    private class TemplateChunkSource implements TileMap.ChunkSource {
+
+        private MapTemplate template;
+
+        public TemplateChunkSource(MapTemplate template) {
+            this.template = template;
+        }
+
+        public void loadTiles(int chunk, short[] tiles) {
+            template.copyTiles(chunk, tiles);
+        }
+
+        public void loadSprites(int chunk, List<Sprite> sprites) {
+            int last = template.getLastSpawn(chunk);
+            for (int i=template.getFirstSpawn(chunk); i<last; i++) {
+                Sprite sprite = createSprite(template.getSpawnType(i),
+                    template.getSpawnX(i), template.getSpawnY(i));
+                if (sprite != null) {
+                    sprites.add(sprite);
+                }
+            }
+        }
+    }
+
+
+    /**
+        A ChunkSource that parses the lines of a text map file
+        one chunk at a time.
+    */
+    private class TextChunkSource implements TileMap.ChunkSource {
+
+        private ArrayList<String> lines;
+
+        public TextChunkSource(ArrayList<String> lines) {
+            this.lines = lines;
+        }
+
+        public void loadTiles(int chunk, short[] tiles) {
+            int firstX = chunk * TileMap.CHUNK_WIDTH;
+            for (int y=0; y<lines.size(); y++) {
+                String line = lines.get(y);
+                int lastX = Math.min(line.length(),
+                    firstX + TileMap.CHUNK_WIDTH);
+                for (int x=firstX; x<lastX; x++) {
+                    tiles[y * TileMap.CHUNK_WIDTH + x - firstX] =
+                        (short)getTileId(line.charAt(x));
+                }
+            }
+        }
 
-            // add it to the map
-            map.addSprite(sprite);
+        public void loadSprites(int chunk, List<Sprite> sprites) {
+            int firstX = chunk * TileMap.CHUNK_WIDTH;
+            for (int y=0; y<lines.size(); y++) {
+                String line = lines.get(y);
+                int lastX = Math.min(line.length(),
+                    firstX + TileMap.CHUNK_WIDTH);
+                for (int x=firstX; x<lastX; x++) {
+                    Sprite sprite = createSprite(line.charAt(x), x, y);
+                    if (sprite != null) {
+                        sprites.add(sprite);
+                    }
+                }
+            }
         }
     }
 
@@ -253,6 +1191,12 @@ public class ResourceManager{
             tiles.add(loadImage(name));
             ch++;
         }
+
+        // id 0 is the empty tile
+        tilePalette = new Image[tiles.size() + 1];
+        for (int i=0; i<tiles.size(); i++) {
+            tilePalette[i + 1] = (Image)tiles.get(i);
+        }
     }
     
     
@@ -262,45 +1206,18 @@ public class ResourceManager{
         Image[][] images = new Image[8][];
 
         // load left-facing images
-        images[0] = new Image[] {
-            loadImage("player1.png"),
-            loadImage("player2.png"),
-            loadImage("player3.png"),
-            loadImage("player4.png"),
-            loadImage("player5.png"),
-            loadImage("player6.png"),
-            loadImage("player7.png"),
-            loadImage("player8.png"),
-            loadImage("bat1.png"),
-            loadImage("bat2.png"),
-            loadImage("bat3.png"),
-            loadImage("bat4.png"),
-            loadImage("grub1.png"),
-            loadImage("grub2.png"),
-            loadImage("hound1.png"),
-            loadImage("hound2.png"),
-            loadImage("hound3.png"),
-            loadImage("hound4.png"),
-            loadImage("hound5.png"),
-            loadImage("jump1.png"),
-            loadImage("jump2.png")
-           
-        };
-
-        images[1] = new Image[images[0].length];
-        images[2] = new Image[images[0].length];
-        images[3] = new Image[images[0].length];
-
-        for (int i=0; i<images[0].length; i++) {
-            // right-facing images
-            images[1][i] = getMirrorImage(images[0][i]);
-            // left-facing "dead" images
-            images[2][i] = getFlippedImage(images[0][i]);
-            // right-facing "dead" images
-            images[3][i] = getFlippedImage(images[1][i]);
-
+        images[0] = new Image[CREATURE_IMAGES.length];
+        for (int i=0; i<CREATURE_IMAGES.length; i++) {
+            images[0][i] = loadImage(CREATURE_IMAGES[i]);
         }
 
+        // right-facing, left-facing "dead" and right-facing
+        // "dead" images
+        Image[][] variants = loadVariants(CREATURE_IMAGES, images[0]);
+        images[1] = variants[0];
+        images[2] = variants[1];
+        images[3] = variants[2];
+
         // create creature animations
         Animation[] playerAnim = new Animation[4];
         Animation[] batAnim = new Animation[4];
@@ -348,12 +1265,22 @@ public class ResourceManager{
         
     } 
     
+    /**
+        Creates an Animation for a Sprite used for cloning, and
+        remembers it so its frames can be converted later.
+    */
+    private Animation createAnimation() {
+        Animation anim = new Animation();
+        animations.add(anim);
+        return anim;
+    }
+
 	private Animation createPlayerAnim(Image img1, Image img2, 
 		Image img3, Image img4, 
 		Image img5, Image img6, 
 		Image img7, Image img8)
     {
-        Animation anim = new Animation();		      
+        Animation anim = createAnimation();		      
         anim.addFrame(img1, 100);  
         anim.addFrame(img2, 100); 
         anim.addFrame(img3, 100);
@@ -368,7 +1295,7 @@ public class ResourceManager{
 	
 	private Animation createJumpAnim(Image img1, Image img2)
 	    {
-	        Animation anim = new Animation();		      
+	        Animation anim = createAnimation();		      
 	        anim.addFrame(img1, 100);  
 	        anim.addFrame(img2, 100); 	       
 	        return anim;
@@ -378,7 +1305,7 @@ public class ResourceManager{
     private Animation createBatAnim(Image img1, Image img2,
         Image img3, Image img4)
     {
-        Animation anim = new Animation();
+        Animation anim = createAnimation();
         anim.addFrame(img1, 100);
         anim.addFrame(img2, 100);
         anim.addFrame(img3, 100);
@@ -387,7 +1314,7 @@ public class ResourceManager{
     }
 
     private Animation createGrubAnim(Image img1, Image img2) {
-        Animation anim = new Animation();
+        Animation anim = createAnimation();
         anim.addFrame(img1, 250);
         anim.addFrame(img2, 250);
         return anim;
@@ -396,7 +1323,7 @@ public class ResourceManager{
     private Animation createHoundAnim(Image img1, Image img2, 
     		Image img3, Image img4, Image img5) {
     	
-        Animation anim = new Animation();
+        Animation anim = createAnimation();
         anim.addFrame(img1, 200);
         anim.addFrame(img2, 150);
         anim.addFrame(img3, 200);
@@ -407,7 +1334,7 @@ public class ResourceManager{
 
     private void loadItemSprites() {
         // create "door" sprite
-        Animation anim = new Animation();
+        Animation anim = createAnimation();
         anim.addFrame(loadImage("door1.png"), 300);
         anim.addFrame(loadImage("door2.png"), 250);
         anim.addFrame(loadImage("door3.png"), 300);
@@ -418,7 +1345,7 @@ public class ResourceManager{
         doorSprite = new Items.Door(anim);
 
         // create "coin" sprite
-        anim = new Animation();
+        anim = createAnimation();
         anim.addFrame(loadImage("coin1.png"), 150);
         anim.addFrame(loadImage("coin2.png"), 150);
         anim.addFrame(loadImage("coin3.png"), 150);
@@ -0,0 +1,289 @@
+package tilegame;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RecursiveAction;
+
+/**
+    The SoftwareRenderer class is a TileMapRenderer that draws the
+    whole frame itself, into the int[] pixels of a BufferedImage,
+    and then draws that image to the screen with one drawImage()
+    call. Without an accelerated Java2D pipeline, each drawImage()
+    goes through a slow general-purpose loop; here, opaque rows are
+    copied with System.arraycopy() and transparent pixels are
+    blended directly.
+    <p>Every image is converted once to an array of ARGB pixels.
+    The frame is split into horizontal bands, drawn in parallel on
+    a ForkJoinPool.
+*/
+public class SoftwareRenderer extends TileMapRenderer {
+
+    // bands shorter than this aren't split further
+    private static final int MIN_BAND_HEIGHT = 32;
+
+    /**
+        An image converted to ARGB pixels.
+    */
+    private static class PixelImage {
+        int width;
+        int height;
+        int[] pixels;
+        boolean opaque;
+    }
+
+    private ForkJoinPool pool;
+    private Map<Image, PixelImage> pixelImages =
+        new WeakHashMap<Image, PixelImage>();
+
+    // the frame being drawn
+    private BufferedImage frame;
+    private int[] pixels;
+    private int width;
+    private int height;
+    private WorldSnapshot snapshot;
+    private float alpha;
+    private int offsetX;
+    private int offsetY;
+    private PixelImage background;
+    private int backgroundX;
+    private int backgroundY;
+    private Image[] palette;
+    private PixelImage[] palettePixels = new PixelImage[0];
+    private PixelImage[] spritePixels = new PixelImage[64];
+
+    public SoftwareRenderer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public SoftwareRenderer(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    public void draw(Graphics2D g, WorldSnapshot snapshot,
+        int screenWidth, int screenHeight, float alpha)
+    {
+        TileMap map = snapshot.getMap();
+        if (map == null) {
+            return;
+        }
+        if (frame == null || frame.getWidth() != screenWidth ||
+            frame.getHeight() != screenHeight)
+        {
+            frame = new BufferedImage(screenWidth, screenHeight,
+                BufferedImage.TYPE_INT_RGB);
+            pixels = ((DataBufferInt)frame.getRaster().
+                getDataBuffer()).getData();
+            width = screenWidth;
+            height = screenHeight;
+        }
+
+        // work out everything the bands need on this thread
+        this.snapshot = snapshot;
+        this.alpha = alpha;
+        offsetX = getOffsetX(map, snapshot.getX(0, alpha),
+            screenWidth);
+        offsetY = screenHeight - tilesToPixels(map.getHeight());
+        background = getPixelImage(getBackground());
+        if (background != null) {
+            backgroundX = getBackgroundX(offsetX, screenWidth,
+                tilesToPixels(map.getWidth()), background.width);
+            backgroundY = screenHeight - background.height;
+        }
+        if (map.getPalette() != palette) {
+            palette = map.getPalette();
+            palettePixels = new PixelImage[palette.length];
+            for (int i=0; i<palette.length; i++) {
+                palettePixels[i] = getPixelImage(palette[i]);
+            }
+        }
+        int count = snapshot.getCount();
+        if (spritePixels.length < count) {
+            spritePixels = new PixelImage[count * 2];
+        }
+        for (int i=0; i<count; i++) {
+            spritePixels[i] = getPixelImage(snapshot.getImage(i));
+        }
+
+        try {
+            pool.invoke(new BandTask(0, height));
+        }
+        catch (RejectedExecutionException ex) {
+            // closed while the last frame was being drawn
+            return;
+        }
+        finally {
+            this.snapshot = null;
+        }
+
+        // present
+        g.drawImage(frame, 0, 0, null);
+    }
+
+    /**
+        Shuts down the threads. Frames drawn after this are
+        skipped.
+    */
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+        Gets the pixels of an image, converting it the first time.
+    */
+    private PixelImage getPixelImage(Image image) {
+        if (image == null) {
+            return null;
+        }
+        PixelImage pixelImage = pixelImages.get(image);
+        if (pixelImage == null) {
+            int w = image.getWidth(null);
+            int h = image.getHeight(null);
+            BufferedImage argb = new BufferedImage(Math.max(w, 1),
+                Math.max(h, 1), BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = argb.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+
+            pixelImage = new PixelImage();
+            pixelImage.width = w;
+            pixelImage.height = h;
+            pixelImage.pixels = ((DataBufferInt)argb.getRaster().
+                getDataBuffer()).getData();
+            pixelImage.opaque = true;
+            for (int i=0; i<pixelImage.pixels.length; i++) {
+                if ((pixelImage.pixels[i] >>> 24) != 0xff) {
+                    pixelImage.opaque = false;
+                    break;
+                }
+            }
+            pixelImages.put(image, pixelImage);
+        }
+        return pixelImage;
+    }
+
+    /**
+        Draws the rows from top to bottom (exclusive) of the frame,
+        splitting them in two if there are many.
+    */
+    private class BandTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private int top;
+        private int bottom;
+
+        public BandTask(int top, int bottom) {
+            this.top = top;
+            this.bottom = bottom;
+        }
+
+        protected void compute() {
+            if (bottom - top >= 2 * MIN_BAND_HEIGHT &&
+                pool.getParallelism() > 1)
+            {
+                int middle = (top + bottom) >>> 1;
+                invokeAll(new BandTask(top, middle),
+                    new BandTask(middle, bottom));
+            }
+            else {
+                drawBand(top, bottom);
+            }
+        }
+    }
+
+    private void drawBand(int top, int bottom) {
+        // draw black background, if needed
+        if (background == null || backgroundY > top) {
+            for (int i=top * width; i<bottom * width; i++) {
+                pixels[i] = 0;
+            }
+        }
+
+        // draw parallax background image
+        if (background != null) {
+            blit(background, backgroundX, backgroundY, top, bottom);
+        }
+
+        // draw the visible tiles
+        TileMap map = snapshot.getMap();
+        int firstTileX = pixelsToTiles(-offsetX);
+        int lastTileX = pixelsToTiles(width - 1 - offsetX);
+        int firstTileY = Math.max(0, pixelsToTiles(top - offsetY));
+        int lastTileY = Math.min(map.getHeight() - 1,
+            pixelsToTiles(bottom - 1 - offsetY));
+        for (int y=firstTileY; y<=lastTileY; y++) {
+            for (int x=firstTileX; x<=lastTileX; x++) {
+                PixelImage image = palettePixels[map.getTileId(x, y)];
+                if (image != null) {
+                    blit(image, tilesToPixels(x) + offsetX,
+                        tilesToPixels(y) + offsetY, top, bottom);
+                }
+            }
+        }
+
+        // draw player and sprites
+        for (int i=0; i<snapshot.getCount(); i++) {
+            PixelImage image = spritePixels[i];
+            if (image != null) {
+                int x = Math.round(snapshot.getX(i, alpha)) + offsetX;
+                int y = Math.round(snapshot.getY(i, alpha)) + offsetY;
+                blit(image, x, y, top, bottom);
+            }
+        }
+    }
+
+    /**
+        Draws an image into the rows from top to bottom (exclusive)
+        of the frame.
+    */
+    private void blit(PixelImage image, int x, int y, int top,
+        int bottom)
+    {
+        int left = Math.max(x, 0);
+        int right = Math.min(x + image.width, width);
+        int firstRow = Math.max(y, top);
+        int lastRow = Math.min(y + image.height, bottom);
+        if (left >= right || firstRow >= lastRow) {
+            return;
+        }
+        int[] src = image.pixels;
+        for (int row=firstRow; row<lastRow; row++) {
+            int srcIndex = (row - y) * image.width + left - x;
+            int dstIndex = row * width + left;
+            if (image.opaque) {
+                System.arraycopy(src, srcIndex, pixels, dstIndex,
+                    right - left);
+                continue;
+            }
+            for (int i=left; i<right; i++) {
+                int argb = src[srcIndex++];
+                int a = argb >>> 24;
+                if (a == 0xff) {
+                    pixels[dstIndex] = argb;
+                }
+                else if (a != 0) {
+                    pixels[dstIndex] = blend(argb, a, pixels[dstIndex]);
+                }
+                dstIndex++;
+            }
+        }
+    }
+
+    /**
+        Blends a translucent ARGB pixel over an RGB pixel.
+    */
+    private static int blend(int argb, int a, int rgb) {
+        int na = 0xff - a;
+        int r = (((argb >> 16) & 0xff) * a +
+            ((rgb >> 16) & 0xff) * na + 127) / 0xff;
+        int g = (((argb >> 8) & 0xff) * a +
+            ((rgb >> 8) & 0xff) * na + 127) / 0xff;
+        int b = ((argb & 0xff) * a + (rgb & 0xff) * na + 127) / 0xff;
+        return (r << 16) | (g << 8) | b;
+    }
+}
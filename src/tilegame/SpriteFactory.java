@@ -0,0 +1,15 @@
+package tilegame;
+
+import graphics.Sprite;
+
+/**
+    A SpriteFactory creates new Sprites of one kind, for the map
+    character it's registered for in the ResourceManager.
+*/
+public interface SpriteFactory {
+
+    /**
+        Creates a new Sprite. It may be called from any thread.
+    */
+    public Sprite createSprite();
+}
@@ -0,0 +1,168 @@
+package tilegame;
+
+import java.util.List;
+
+import graphics.Sprite;
+
+/**
+    The SpriteGrid class is a uniform grid of cells over a map,
+    each listing the Sprites whose top-left corner is in the
+    cell. It finds the Sprites in a rectangle by looking only at
+    the cells the rectangle covers, so the cost of a query
+    depends on how crowded that area is, not on how many Sprites
+    the map has.
+    <p>Sprites outside the map are kept in the nearest cell on
+    the edge. Whoever moves a Sprite must call move() with its old
+    position, so the grid can update its cell.
+*/
+public class SpriteGrid {
+
+    // the size in bits of a cell (128 pixels, or 4 tiles)
+    private static final int CELL_SIZE_BITS = 7;
+    private static final int CELL_SIZE = 1 << CELL_SIZE_BITS;
+
+    private static final int INITIAL_CELL_CAPACITY = 4;
+
+    private int cellsX;
+    private int cellsY;
+    private Sprite[][] cells;
+    private int[] counts;
+
+    // the largest frame size of any Sprite added, used to find
+    // Sprites that start in a nearby cell but overlap the query
+    // rectangle
+    private int maxWidth;
+    private int maxHeight;
+
+    /**
+        Creates a new SpriteGrid covering a map of the specified
+        size, in pixels.
+    */
+    public SpriteGrid(int width, int height) {
+        cellsX = Math.max(1, (width + CELL_SIZE - 1) >> CELL_SIZE_BITS);
+        cellsY = Math.max(1,
+            (height + CELL_SIZE - 1) >> CELL_SIZE_BITS);
+        cells = new Sprite[cellsX * cellsY][];
+        counts = new int[cellsX * cellsY];
+    }
+
+    private int getCellX(float x) {
+        int cellX = Math.round(x) >> CELL_SIZE_BITS;
+        return Math.max(0, Math.min(cellX, cellsX - 1));
+    }
+
+    private int getCellY(float y) {
+        int cellY = Math.round(y) >> CELL_SIZE_BITS;
+        return Math.max(0, Math.min(cellY, cellsY - 1));
+    }
+
+    private int getCell(float x, float y) {
+        return getCellY(y) * cellsX + getCellX(x);
+    }
+
+    /**
+        Adds a Sprite at its current position.
+    */
+    public void add(Sprite sprite) {
+        maxWidth = Math.max(maxWidth, sprite.getMaxWidth());
+        maxHeight = Math.max(maxHeight, sprite.getMaxHeight());
+        addToCell(getCell(sprite.getX(), sprite.getY()), sprite);
+    }
+
+    /**
+        Removes a Sprite. The Sprite must be at the position it
+        was last added or moved to.
+    */
+    public void remove(Sprite sprite) {
+        if (!removeFromCell(getCell(sprite.getX(), sprite.getY()),
+            sprite))
+        {
+            // the Sprite was moved without telling the grid;
+            // look for it everywhere
+            for (int i=0; i<cells.length; i++) {
+                if (removeFromCell(i, sprite)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+        Updates the cell of a Sprite that moved from the
+        specified position.
+    */
+    public void move(Sprite sprite, float oldX, float oldY) {
+        int oldCell = getCell(oldX, oldY);
+        int newCell = getCell(sprite.getX(), sprite.getY());
+        if (oldCell != newCell) {
+            if (!removeFromCell(oldCell, sprite)) {
+                remove(sprite);
+            }
+            add(sprite);
+        }
+    }
+
+    /**
+        Adds the Sprites that overlap the specified rectangle, in
+        pixels, to the result list. The list isn't cleared first.
+    */
+    public void query(float x, float y, float width, float height,
+        List<Sprite> result)
+    {
+        float right = x + width;
+        float bottom = y + height;
+        int firstX = getCellX(x - maxWidth);
+        int lastX = getCellX(right);
+        int firstY = getCellY(y - maxHeight);
+        int lastY = getCellY(bottom);
+
+        for (int cellY=firstY; cellY<=lastY; cellY++) {
+            for (int cellX=firstX; cellX<=lastX; cellX++) {
+                int i = cellY * cellsX + cellX;
+                Sprite[] cell = cells[i];
+                for (int j=0; j<counts[i]; j++) {
+                    Sprite sprite = cell[j];
+                    float spriteX = sprite.getX();
+                    float spriteY = sprite.getY();
+                    if (spriteX < right &&
+                        x < spriteX + sprite.getWidth() &&
+                        spriteY < bottom &&
+                        y < spriteY + sprite.getHeight())
+                    {
+                        result.add(sprite);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addToCell(int i, Sprite sprite) {
+        Sprite[] cell = cells[i];
+        if (cell == null) {
+            cell = new Sprite[INITIAL_CELL_CAPACITY];
+            cells[i] = cell;
+        }
+        else if (counts[i] == cell.length) {
+            Sprite[] newCell = new Sprite[cell.length * 2];
+            System.arraycopy(cell, 0, newCell, 0, cell.length);
+            cell = newCell;
+            cells[i] = cell;
+        }
+        cell[counts[i]++] = sprite;
+    }
+
+    private boolean removeFromCell(int i, Sprite sprite) {
+        Sprite[] cell = cells[i];
+        int count = counts[i];
+        for (int j=0; j<count; j++) {
+            if (cell[j] == sprite) {
+                // move the last Sprite into the gap
+                cell[j] = cell[count - 1];
+                cell[count - 1] = null;
+                counts[i] = count - 1;
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,80 @@
+package tilegame;
+
+import graphics.Sprite;
+
+/**
+    A SpritePool is a SpriteFactory that reuses Sprites. Sprites
+    that are no longer needed (like creatures that died, or the
+    Sprites of a map that was left) are given back with release(),
+    reset, and handed out again instead of creating new ones, so
+    starting a map over doesn't create a burst of garbage. New
+    Sprites are cloned from a prototype.
+    <p>A SpritePool may be used from several threads.
+*/
+public class SpritePool implements SpriteFactory {
+
+    // most Sprites kept for reuse
+    private static final int DEFAULT_MAX_SIZE = 4096;
+
+    private Sprite prototype;
+    private Sprite[] free;
+    private int count;
+    private int maxSize;
+
+    public SpritePool(Sprite prototype) {
+        this(prototype, DEFAULT_MAX_SIZE);
+    }
+
+    public SpritePool(Sprite prototype, int maxSize) {
+        this.prototype = prototype;
+        this.maxSize = maxSize;
+        free = new Sprite[16];
+    }
+
+    /**
+        Gets the class of the Sprites this pool creates.
+    */
+    public Class<? extends Sprite> getSpriteClass() {
+        return prototype.getClass();
+    }
+
+    /**
+        Gets a Sprite from the pool, or clones the prototype if the
+        pool is empty.
+    */
+    public Sprite createSprite() {
+        synchronized (this) {
+            if (count > 0) {
+                Sprite sprite = free[--count];
+                free[count] = null;
+                return sprite;
+            }
+        }
+        return (Sprite)prototype.clone();
+    }
+
+    /**
+        Resets a Sprite and keeps it for reuse. The Sprite must
+        not be in a map anymore.
+    */
+    public void release(Sprite sprite) {
+        sprite.reset();
+        synchronized (this) {
+            if (count < maxSize) {
+                if (count == free.length) {
+                    Sprite[] newFree = new Sprite[count * 2];
+                    System.arraycopy(free, 0, newFree, 0, count);
+                    free = newFree;
+                }
+                free[count++] = sprite;
+            }
+        }
+    }
+
+    /**
+        Gets the number of Sprites ready for reuse.
+    */
+    public synchronized int size() {
+        return count;
+    }
+}
@@ -0,0 +1,213 @@
+package tilegame;
+
+import java.awt.*;
+import java.awt.image.VolatileImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+    The TileBlockCache class draws the tiles of a TileMap from
+    pre-drawn blocks of 16x16 tiles, so a frame takes a few
+    drawImage() calls instead of one per tile. The blocks are
+    VolatileImages, which can live in video memory; if their
+    contents are lost (for example, when the display mode
+    changes), they are drawn again.
+    <p>A block is drawn again when the tiles in its columns change
+    (see TileMap.getTileRevision()). Only the most recently used
+    blocks are kept.
+*/
+public class TileBlockCache {
+
+    // the size in bits of a block, in tiles (16 tiles)
+    private static final int BLOCK_SIZE_BITS = 4;
+    private static final int BLOCK_SIZE = 1 << BLOCK_SIZE_BITS;
+    private static final int BLOCK_PIXELS =
+        TileMapRenderer.tilesToPixels(BLOCK_SIZE);
+
+    private static final int DEFAULT_MAX_BLOCKS = 32;
+
+    private static class Block {
+        int blockX;
+        int blockY;
+        Image image;
+        int revision;
+        boolean drawn;
+    }
+
+    private TileMap map;
+    private Image[] palette;
+    private GraphicsConfiguration gc;
+    private LinkedHashMap<Long, Block> blocks;
+
+    public TileBlockCache() {
+        this(DEFAULT_MAX_BLOCKS);
+    }
+
+    /**
+        Creates a new TileBlockCache that keeps at most the
+        specified number of blocks.
+    */
+    public TileBlockCache(final int maxBlocks) {
+        blocks = new LinkedHashMap<Long, Block>(maxBlocks, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                Map.Entry<Long, Block> eldest)
+            {
+                if (size() > maxBlocks) {
+                    eldest.getValue().image.flush();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+        Draws the tiles of a map that are on the screen, with the
+        map's top-left corner at the specified offset.
+    */
+    public void draw(Graphics2D g, TileMap map, int offsetX,
+        int offsetY, int screenWidth, int screenHeight)
+    {
+        GraphicsConfiguration gc = g.getDeviceConfiguration();
+        if (map != this.map || map.getPalette() != palette ||
+            gc != this.gc)
+        {
+            clear();
+            this.map = map;
+            this.palette = map.getPalette();
+            this.gc = gc;
+        }
+
+        int lastBlockX = (map.getWidth() - 1) >> BLOCK_SIZE_BITS;
+        int lastBlockY = (map.getHeight() - 1) >> BLOCK_SIZE_BITS;
+        int firstX = Math.max(0, getBlock(-offsetX));
+        int lastX = Math.min(lastBlockX,
+            getBlock(screenWidth - 1 - offsetX));
+        int firstY = Math.max(0, getBlock(-offsetY));
+        int lastY = Math.min(lastBlockY,
+            getBlock(screenHeight - 1 - offsetY));
+
+        for (int blockY=firstY; blockY<=lastY; blockY++) {
+            for (int blockX=firstX; blockX<=lastX; blockX++) {
+                drawBlock(g, getBlock(blockX, blockY),
+                    blockX * BLOCK_PIXELS + offsetX,
+                    blockY * BLOCK_PIXELS + offsetY);
+            }
+        }
+    }
+
+    /**
+        Forgets all the blocks.
+    */
+    public void clear() {
+        Iterator<Block> i = blocks.values().iterator();
+        while (i.hasNext()) {
+            i.next().image.flush();
+        }
+        blocks.clear();
+        map = null;
+        palette = null;
+    }
+
+    private static int getBlock(int pixels) {
+        return TileMapRenderer.pixelsToTiles(pixels) >>
+            BLOCK_SIZE_BITS;
+    }
+
+    private Block getBlock(int blockX, int blockY) {
+        Long key = Long.valueOf(((long)blockY << 32) | blockX);
+        Block block = blocks.get(key);
+        if (block == null) {
+            block = new Block();
+            block.blockX = blockX;
+            block.blockY = blockY;
+            block.image = createImage();
+            blocks.put(key, block);
+        }
+        return block;
+    }
+
+    /**
+        Creates the image for a block. Tiles are either opaque or
+        fully transparent at each pixel, so a transparent (not
+        translucent) image is enough, and is faster to draw.
+    */
+    private Image createImage() {
+        try {
+            return gc.createCompatibleVolatileImage(BLOCK_PIXELS,
+                BLOCK_PIXELS, Transparency.BITMASK);
+        }
+        catch (RuntimeException ex) {
+            // no accelerated images here (for example, drawing to
+            // an image with no display)
+            return gc.createCompatibleImage(BLOCK_PIXELS,
+                BLOCK_PIXELS, Transparency.BITMASK);
+        }
+    }
+
+    private void drawBlock(Graphics2D g, Block block, int x, int y) {
+        int revision = map.getTileRevision(block.blockX << BLOCK_SIZE_BITS);
+        if (!(block.image instanceof VolatileImage)) {
+            if (!block.drawn || block.revision != revision) {
+                render(block, revision);
+            }
+            g.drawImage(block.image, x, y, null);
+            return;
+        }
+
+        VolatileImage image = (VolatileImage)block.image;
+        do {
+            int status = image.validate(gc);
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                image.flush();
+                block.image = createImage();
+                if (!(block.image instanceof VolatileImage)) {
+                    block.drawn = false;
+                    drawBlock(g, block, x, y);
+                    return;
+                }
+                image = (VolatileImage)block.image;
+                block.drawn = false;
+            }
+            else if (status == VolatileImage.IMAGE_RESTORED) {
+                block.drawn = false;
+            }
+            if (!block.drawn || block.revision != revision) {
+                render(block, revision);
+            }
+            g.drawImage(image, x, y, null);
+        }
+        while (image.contentsLost());
+    }
+
+    /**
+        Draws the tiles of a block into its image.
+    */
+    private void render(Block block, int revision) {
+        Graphics2D g = (Graphics2D)block.image.getGraphics();
+
+        // clear to transparent
+        g.setComposite(AlphaComposite.Clear);
+        g.fillRect(0, 0, BLOCK_PIXELS, BLOCK_PIXELS);
+        g.setComposite(AlphaComposite.SrcOver);
+
+        int firstX = block.blockX << BLOCK_SIZE_BITS;
+        int firstY = block.blockY << BLOCK_SIZE_BITS;
+        for (int y=0; y<BLOCK_SIZE; y++) {
+            for (int x=0; x<BLOCK_SIZE; x++) {
+                Image image = palette[map.getTileId(firstX + x,
+                    firstY + y)];
+                if (image != null) {
+                    g.drawImage(image,
+                        TileMapRenderer.tilesToPixels(x),
+                        TileMapRenderer.tilesToPixels(y), null);
+                }
+            }
+        }
+        g.dispose();
+
+        block.revision = revision;
+        block.drawn = true;
+    }
+}
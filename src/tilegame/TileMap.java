@@ -1,50 +1,345 @@
 package tilegame;
 
 import java.awt.Image;
+import java.awt.Point;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import graphics.BodyStore;
 import graphics.Sprite;
+import util.ThreadPool;
 
 /**
     The TileMap class contains the data for a tile-based
-    map, including Sprites. Each tile is a reference to an
-    Image. Of course, Images are used multiple times in the tile
-    map.
+    map, including Sprites. Each tile is a short id into a
+    palette of Images. Id 0 is the empty tile. Of course, Images
+    are used multiple times in the tile map.
+    <p>The tiles are stored in chunks of CHUNK_WIDTH columns that
+    span the full height of the map. A map can be streamed from a
+    ChunkSource: only the chunks around the camera are loaded, on
+    a background thread, and chunks that are far away are evicted.
+    Tiles in chunks that aren't loaded are empty, and the Sprites
+    of an evicted chunk are parked with the chunk until it is
+    loaded again.
+    <p>The Sprites are also kept in a SpriteGrid, so the Sprites
+    in an area can be found without looking at every Sprite.
+    Whoever moves a Sprite in the map should call moveSprite().
+    <p>Every chunk also keeps a bitset of its solid (non-empty)
+    tiles, one long per row, so collision queries can test 64
+    tiles at a time.
 */
 public class TileMap {
 
-    private Image[][] tiles;
-    private LinkedList sprites;
+    public static final short EMPTY_TILE = 0;
+
+    // the number of columns in a chunk
+    // Math.pow(2, CHUNK_WIDTH_BITS) == CHUNK_WIDTH
+    public static final int CHUNK_WIDTH_BITS = 6;
+    public static final int CHUNK_WIDTH = 1 << CHUNK_WIDTH_BITS;
+    private static final int CHUNK_MASK = CHUNK_WIDTH - 1;
+
+    // chunks on each side of the player's chunk that are loaded
+    // on the game thread if the loader hasn't delivered them yet
+    private static final int SYNC_LOAD_RADIUS = 1;
+    // chunks on each side of the player's chunk that are loaded
+    // in the background, and the distance at which a chunk is
+    // evicted, larger so a chunk isn't reloaded as soon as it's
+    // evicted
+    private static final int LOAD_RADIUS = 3;
+    private static final int EVICT_RADIUS = 4;
+
+    /**
+        A ChunkSource provides the tiles and Sprites of a streamed
+        map, one chunk at a time. Its methods are called on a
+        background thread.
+    */
+    public interface ChunkSource {
+
+        /**
+            Loads the tile ids of a chunk, row by row, into an
+            array of CHUNK_WIDTH * height tiles.
+        */
+        public void loadTiles(int chunk, short[] tiles)
+            throws IOException;
+
+        /**
+            Creates the Sprites that start in a chunk.
+        */
+        public void loadSprites(int chunk, List<Sprite> sprites)
+            throws IOException;
+    }
+
+    private static class Chunk {
+        // null if the chunk isn't loaded
+        volatile short[] tiles;
+        // one bit per solid tile, one long per row
+        volatile long[] solid;
+        // Sprites of the chunk while it is evicted, or null if
+        // the Sprites were never loaded
+        LinkedList<Sprite> parkedSprites;
+        boolean loading;
+        // changes whenever the tiles change
+        volatile int revision;
+    }
+
+    private static class LoadedChunk {
+        int index;
+        short[] tiles;
+        long[] solid;
+        List<Sprite> sprites;
+    }
+
+    private int width;
+    private int height;
+    private Chunk[] chunks;
+    private volatile Image[] palette;
+    private EntityStore sprites;
+    private SpriteGrid grid;
+    private ArrayList<Sprite> regionCache = new ArrayList<Sprite>();
+    private BodyStore bodies;
     private Sprite player;
 
+    // streaming
+    private ChunkSource source;
+    private ThreadPool loader;
+    private ConcurrentLinkedQueue<LoadedChunk> loadedChunks;
+
     public TileMap(int width, int height) {
-        tiles = new Image[width][height];
-        sprites = new LinkedList();
+        this(width, height, new Image[] { null });
+    }
+
+    /**
+        Creates a new TileMap using the specified palette. The
+        palette's first entry is for the empty tile, and should
+        be null.
+    */
+    public TileMap(int width, int height, Image[] palette) {
+        this(width, height, palette, null, null);
+    }
+
+    /**
+        Creates a new TileMap that streams its chunks from the
+        specified ChunkSource, using the ThreadPool to load them.
+        No chunks are loaded until loadChunks() or
+        updateStreaming() is called.
+    */
+    public TileMap(int width, int height, Image[] palette,
+        ChunkSource source, ThreadPool loader)
+    {
+        this.width = width;
+        this.height = height;
+        this.palette = palette;
+        this.source = source;
+        this.loader = loader;
+        sprites = new EntityStore();
+        grid = new SpriteGrid(TileMapRenderer.tilesToPixels(width),
+            TileMapRenderer.tilesToPixels(height));
+        chunks = new Chunk[(width + CHUNK_MASK) >> CHUNK_WIDTH_BITS];
+        for (int i=0; i<chunks.length; i++) {
+            chunks[i] = new Chunk();
+            if (source == null) {
+                chunks[i].tiles = new short[CHUNK_WIDTH * height];
+                chunks[i].solid = new long[height];
+            }
+        }
+        if (source != null) {
+            loadedChunks = new ConcurrentLinkedQueue<LoadedChunk>();
+        }
     }
 
     public int getWidth() {
-        return tiles.length;
+        return width;
     }
 
     public int getHeight() {
-        return tiles[0].length;
+        return height;
     }
 
-    public Image getTile(int x, int y) {
-        if (x < 0 || x >= getWidth() ||
-            y < 0 || y >= getHeight())
+    /**
+        Gets the palette of tile Images, indexed by tile id.
+    */
+    public Image[] getPalette() {
+        return palette;
+    }
+
+    /**
+        Sets the palette of tile Images. Renderers see the new
+        palette as a change and redraw the tiles.
+    */
+    public void setPalette(Image[] palette) {
+        this.palette = palette;
+    }
+
+    /**
+        Gets the id of the tile at the specified location, or
+        EMPTY_TILE if the location is off the map or its chunk
+        isn't loaded.
+    */
+    public int getTileId(int x, int y) {
+        if (x < 0 || x >= width ||
+            y < 0 || y >= height)
         {
-            return null;
+            return EMPTY_TILE;
+        }
+        short[] tiles = chunks[x >> CHUNK_WIDTH_BITS].tiles;
+        if (tiles == null) {
+            return EMPTY_TILE;
         }
         else {
-            return tiles[x][y];
+            return tiles[y * CHUNK_WIDTH + (x & CHUNK_MASK)];
+        }
+    }
+
+    /**
+        Sets the id of the tile at the specified location. Does
+        nothing if the location's chunk isn't loaded.
+    */
+    public void setTileId(int x, int y, int id) {
+        Chunk chunk = chunks[x >> CHUNK_WIDTH_BITS];
+        short[] tiles = chunk.tiles;
+        if (tiles != null) {
+            chunk.revision++;
+            tiles[y * CHUNK_WIDTH + (x & CHUNK_MASK)] = (short)id;
+            long bit = 1L << (x & CHUNK_MASK);
+            if (id != EMPTY_TILE) {
+                chunk.solid[y] |= bit;
+            }
+            else {
+                chunk.solid[y] &= ~bit;
+            }
+        }
+    }
+
+    /**
+        Gets a number that changes whenever the tiles of the chunk
+        holding the specified column change, are loaded, or are
+        evicted. Used to tell when drawings of the tiles are out of
+        date.
+    */
+    public int getTileRevision(int x) {
+        if (x < 0 || x >= width) {
+            return 0;
+        }
+        return chunks[x >> CHUNK_WIDTH_BITS].revision;
+    }
+
+    /**
+        Finds the first solid tile in a rectangle of tiles,
+        scanning column by column from left to right, and each
+        column from top to bottom. Columns off the left or right
+        edge of the map count as solid, and so do chunks that
+        aren't loaded, so nothing falls through tiles it can't
+        see; rows above or below the map are empty. If a tile is
+        found, its location is stored in the result Point.
+    */
+    public boolean findSolidTile(int fromX, int fromY,
+        int toX, int toY, Point result)
+    {
+        if (fromX < 0) {
+            result.setLocation(fromX, fromY);
+            return true;
         }
+
+        int firstY = Math.max(fromY, 0);
+        int lastY = Math.min(toY, height - 1);
+        int lastX = Math.min(toX, width - 1);
+        if (fromX <= lastX) {
+            for (int c = fromX >> CHUNK_WIDTH_BITS;
+                c <= lastX >> CHUNK_WIDTH_BITS; c++)
+            {
+                long[] solid = chunks[c].solid;
+                int chunkX = c << CHUNK_WIDTH_BITS;
+                if (solid == null) {
+                    if (firstY > lastY) {
+                        continue;
+                    }
+                    // not loaded: its first column is a wall
+                    result.setLocation(Math.max(fromX, chunkX), firstY);
+                    return true;
+                }
+
+                // mask of the columns to test in this chunk
+                int first = Math.max(fromX, chunkX) - chunkX;
+                int last = Math.min(lastX, chunkX + CHUNK_MASK) -
+                    chunkX;
+                long columns = (-1L << first) & (-1L >>> (63 - last));
+
+                // find the leftmost hit, topmost on ties
+                int hitColumn = CHUNK_WIDTH;
+                int hitY = -1;
+                for (int y=firstY; y<=lastY; y++) {
+                    long hits = solid[y] & columns;
+                    if (hits != 0) {
+                        int column = Long.numberOfTrailingZeros(hits);
+                        if (column < hitColumn) {
+                            hitColumn = column;
+                            hitY = y;
+                        }
+                    }
+                }
+                if (hitY >= 0) {
+                    result.setLocation(chunkX + hitColumn, hitY);
+                    return true;
+                }
+            }
+        }
+
+        if (toX >= width) {
+            result.setLocation(Math.max(fromX, width), fromY);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+        Creates the solid bitset of a chunk's tiles.
+    */
+    private long[] createSolidMask(short[] tiles) {
+        long[] solid = new long[height];
+        for (int y=0; y<height; y++) {
+            long row = 0;
+            int offset = y * CHUNK_WIDTH;
+            for (int i=0; i<CHUNK_WIDTH; i++) {
+                if (tiles[offset + i] != EMPTY_TILE) {
+                    row |= 1L << i;
+                }
+            }
+            solid[y] = row;
+        }
+        return solid;
+    }
+
+    public Image getTile(int x, int y) {
+        return palette[getTileId(x, y)];
     }
 
     public void setTile(int x, int y, Image tile) {
-        tiles[x][y] = tile;
+        setTileId(x, y, getPaletteId(tile));
+    }
+
+    /**
+        Gets the id of an Image in the palette, adding it to the
+        palette if needed.
+    */
+    private int getPaletteId(Image tile) {
+        if (tile == null) {
+            return EMPTY_TILE;
+        }
+        for (int i=1; i<palette.length; i++) {
+            if (palette[i] == tile) {
+                return i;
+            }
+        }
+        // copy the palette, since it may be shared with other maps
+        Image[] newPalette = new Image[palette.length + 1];
+        System.arraycopy(palette, 0, newPalette, 0, palette.length);
+        newPalette[palette.length] = tile;
+        palette = newPalette;
+        return palette.length - 1;
     }
 
     public Sprite getPlayer() {
@@ -55,16 +350,391 @@ public class TileMap {
         this.player = player;
     }
 
+    /**
+        Adds a Sprite to the map. The Sprite is parked until it's
+        activated (see updateActiveRegion()).
+    */
     public void addSprite(Sprite sprite) {
+        sprite.storePosition();
         sprites.add(sprite);
+        grid.add(sprite);
     }
 
+    /**
+        Removes a Sprite from the map. If the Sprites are being
+        walked (see beginIteration()), the Sprite's index is left
+        empty until the walk ends.
+    */
     public void removeSprite(Sprite sprite) {
-        sprites.remove(sprite);
+        if (sprites.remove(sprite)) {
+            grid.remove(sprite);
+            if (bodies != null) {
+                bodies.remove(sprite);
+            }
+        }
+    }
+
+    /**
+        Removes every Sprite from the map, including those parked
+        in evicted chunks, and adds them to the list. Can't be
+        called during a walk over the Sprites.
+    */
+    public void removeAllSprites(List<Sprite> removed) {
+        for (int i=sprites.size() - 1; i>=0; i--) {
+            Sprite sprite = sprites.get(i);
+            removed.add(sprite);
+            removeSprite(sprite);
+        }
+        for (int i=0; i<chunks.length; i++) {
+            if (chunks[i].parkedSprites != null) {
+                removed.addAll(chunks[i].parkedSprites);
+                chunks[i].parkedSprites = null;
+            }
+        }
+    }
+
+    /**
+        Gets the BodyStore holding the positions and velocities of
+        the Sprites in the map (except the player), or null if the
+        Sprites hold their own.
+    */
+    public BodyStore getBodyStore() {
+        return bodies;
+    }
+
+    /**
+        Sets the BodyStore to hold the positions and velocities of
+        the active Sprites in the map (except the player), moving
+        the active Sprites already in the map into it. If null, the
+        Sprites hold their own.
+    */
+    public void setBodyStore(BodyStore bodies) {
+        for (int i=0; i<sprites.getActiveCount(); i++) {
+            Sprite sprite = sprites.get(i);
+            if (sprite != null) {
+                if (this.bodies != null) {
+                    this.bodies.remove(sprite);
+                }
+                if (bodies != null) {
+                    bodies.add(sprite);
+                }
+            }
+        }
+        this.bodies = bodies;
+    }
+
+    /**
+        Gets the number of active Sprites in the map. They are at
+        the indices below this number.
+    */
+    public int getActiveSpriteCount() {
+        return sprites.getActiveCount();
+    }
+
+    /**
+        Activates the parked Sprites that overlap the columns from
+        activateLeft to activateRight, and parks the active Sprites
+        that are entirely outside the columns from parkLeft to
+        parkRight, in pixels. Parked Sprites aren't updated, so only
+        the area around the camera costs any time to simulate. The
+        park columns should be wider than the activate columns, so
+        a Sprite on the edge isn't activated and parked over and
+        over. Can't be called during a walk over the Sprites.
+    */
+    public void updateActiveRegion(float activateLeft,
+        float activateRight, float parkLeft, float parkRight)
+    {
+        // park from the last active Sprite down, since parking
+        // moves the last active Sprite into the gap
+        for (int i=sprites.getActiveCount() - 1; i>=0; i--) {
+            Sprite sprite = sprites.get(i);
+            float x = sprite.getX();
+            if (x + sprite.getWidth() <= parkLeft || x >= parkRight) {
+                parkSprite(sprite);
+            }
+        }
+
+        // the camera only scrolls horizontally, so cover the full
+        // height of the map and beyond
+        int pixelHeight = TileMapRenderer.tilesToPixels(height);
+        regionCache.clear();
+        grid.query(activateLeft, -pixelHeight,
+            activateRight - activateLeft, 3 * pixelHeight, regionCache);
+        for (int i=0; i<regionCache.size(); i++) {
+            activateSprite(regionCache.get(i));
+        }
+        regionCache.clear();
     }
 
-    public Iterator getSprites() {
-        return sprites.iterator();
+    /**
+        Activates all the Sprites in the map.
+    */
+    public void activateAll() {
+        while (sprites.getActiveCount() < sprites.size()) {
+            activateSprite(sprites.get(sprites.getActiveCount()));
+        }
+    }
+
+    private void activateSprite(Sprite sprite) {
+        if (!sprites.isActive(sprite)) {
+            sprites.activate(sprite);
+            if (bodies != null) {
+                bodies.add(sprite);
+            }
+        }
+    }
+
+    private void parkSprite(Sprite sprite) {
+        sprites.park(sprite);
+        if (bodies != null) {
+            bodies.remove(sprite);
+        }
+        // draw it at rest while parked
+        sprite.storePosition();
+    }
+
+    /**
+        Updates the SpriteGrid after a Sprite in the map moved
+        from the specified position.
+    */
+    public void moveSprite(Sprite sprite, float oldX, float oldY) {
+        grid.move(sprite, oldX, oldY);
+    }
+
+    /**
+        Gets the number of Sprite indices in the map, not counting
+        the player. Sprites are walked by index:
+        <pre>
+        for (int i=0; i&lt;map.getSpriteCount(); i++) {
+            Sprite sprite = map.getSprite(i);
+            ...
+        }
+        </pre>
+    */
+    public int getSpriteCount() {
+        return sprites.size();
+    }
+
+    /**
+        Gets the Sprite at the specified index, or null if it was
+        removed during the current walk.
+    */
+    public Sprite getSprite(int index) {
+        return sprites.get(index);
+    }
+
+    /**
+        Starts a walk over the Sprites. Until endIteration() is
+        called, removing a Sprite leaves a null at its index
+        instead of moving another Sprite into it.
+    */
+    public void beginIteration() {
+        sprites.beginIteration();
+    }
+
+    /**
+        Ends a walk started with beginIteration().
+    */
+    public void endIteration() {
+        sprites.endIteration();
+    }
+
+    /**
+        Adds the Sprites that overlap the specified rectangle, in
+        pixels, to the result list. The player isn't included.
+    */
+    public void getSprites(float x, float y, float width,
+        float height, List<Sprite> result)
+    {
+        grid.query(x, y, width, height, result);
+    }
+
+    private void addSprites(List<Sprite> newSprites) {
+        for (int i=0; i<newSprites.size(); i++) {
+            addSprite(newSprites.get(i));
+        }
+    }
+
+    // -----------------------------------------------------------
+    // streaming
+    // -----------------------------------------------------------
+
+    /**
+        Loads every chunk of a map that isn't streamed from the
+        specified ChunkSource, on this thread.
+    */
+    public void loadAll(ChunkSource chunkSource) throws IOException {
+        ArrayList<Sprite> chunkSprites = new ArrayList<Sprite>();
+        for (int i=0; i<chunks.length; i++) {
+            chunkSource.loadTiles(i, chunks[i].tiles);
+            chunks[i].solid = createSolidMask(chunks[i].tiles);
+            chunks[i].revision++;
+            chunkSource.loadSprites(i, chunkSprites);
+        }
+        addSprites(chunkSprites);
+    }
+
+    /**
+        Loads the chunks next to the specified tile column right
+        away, on this thread, including chunks already being
+        loaded in the background. Use this before the first frame
+        of a streamed map; updateStreaming() loads the rest in the
+        background.
+    */
+    public void loadChunks(int tileX) throws IOException {
+        if (source == null) {
+            return;
+        }
+        int center = getChunk(tileX);
+        for (int i=center - SYNC_LOAD_RADIUS;
+            i<=center + SYNC_LOAD_RADIUS; i++)
+        {
+            loadChunkNow(i);
+        }
+    }
+
+    /**
+        Loads and installs a chunk on this thread if it isn't
+        installed yet. If it's also being loaded in the background,
+        that result is dropped when it arrives.
+    */
+    private void loadChunkNow(int index) throws IOException {
+        if (index >= 0 && index < chunks.length &&
+            chunks[index].tiles == null)
+        {
+            boolean withSprites = (chunks[index].parkedSprites == null);
+            installChunk(loadChunk(index, withSprites));
+        }
+    }
+
+    /**
+        Installs the chunks that finished loading, starts loading
+        the chunks around the specified tile column, and evicts
+        chunks that are far away. Called once per update.
+    */
+    public void updateStreaming(int tileX) {
+        if (source == null) {
+            return;
+        }
+
+        // install loaded chunks
+        LoadedChunk loaded;
+        while ((loaded = loadedChunks.poll()) != null) {
+            installChunk(loaded);
+        }
+
+        int center = getChunk(tileX);
+
+        // start loading nearby chunks, ahead of the player
+        for (int i=center - LOAD_RADIUS; i<=center + LOAD_RADIUS; i++) {
+            if (i >= 0 && i < chunks.length) {
+                Chunk chunk = chunks[i];
+                if (chunk.tiles == null && !chunk.loading) {
+                    chunk.loading = true;
+                    requestChunk(i, chunk.parkedSprites == null);
+                }
+            }
+        }
+
+        // the chunks the player can touch this step must be there,
+        // so if the loader has fallen behind, load them here
+        for (int i=center - SYNC_LOAD_RADIUS;
+            i<=center + SYNC_LOAD_RADIUS; i++)
+        {
+            try {
+                loadChunkNow(i);
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        // evict far away chunks
+        for (int i=0; i<chunks.length; i++) {
+            if (Math.abs(i - center) > EVICT_RADIUS &&
+                chunks[i].tiles != null)
+            {
+                evictChunk(i);
+            }
+        }
+    }
+
+    private int getChunk(int tileX) {
+        int chunk = tileX >> CHUNK_WIDTH_BITS;
+        return Math.max(0, Math.min(chunk, chunks.length - 1));
+    }
+
+    private void requestChunk(final int index,
+        final boolean withSprites)
+    {
+        loader.runTask(new Runnable() {
+            public void run() {
+                try {
+                    loadedChunks.add(loadChunk(index, withSprites));
+                }
+                catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private LoadedChunk loadChunk(int index, boolean withSprites)
+        throws IOException
+    {
+        LoadedChunk loaded = new LoadedChunk();
+        loaded.index = index;
+        loaded.tiles = new short[CHUNK_WIDTH * height];
+        source.loadTiles(index, loaded.tiles);
+        loaded.solid = createSolidMask(loaded.tiles);
+        if (withSprites) {
+            loaded.sprites = new ArrayList<Sprite>();
+            source.loadSprites(index, loaded.sprites);
+        }
+        return loaded;
+    }
+
+    private void installChunk(LoadedChunk loaded) {
+        Chunk chunk = chunks[loaded.index];
+        chunk.loading = false;
+        if (chunk.tiles != null) {
+            // already loaded on the game thread
+            return;
+        }
+        chunk.solid = loaded.solid;
+        chunk.tiles = loaded.tiles;
+        chunk.revision++;
+        if (chunk.parkedSprites != null) {
+            // bring back the Sprites parked on eviction
+            addSprites(chunk.parkedSprites);
+            chunk.parkedSprites = null;
+        }
+        else if (loaded.sprites != null) {
+            addSprites(loaded.sprites);
+        }
+    }
+
+    private void evictChunk(int index) {
+        Chunk chunk = chunks[index];
+        chunk.tiles = null;
+        chunk.solid = null;
+        chunk.revision++;
+
+        // park the Sprites that are in the chunk
+        // (walking backwards, since removing moves the last
+        // Sprite into the gap)
+        chunk.parkedSprites = new LinkedList<Sprite>();
+        for (int i=sprites.size() - 1; i>=0; i--) {
+            Sprite sprite = sprites.get(i);
+            if (sprite == null) {
+                continue;
+            }
+            int tileX = TileMapRenderer.pixelsToTiles(sprite.getX());
+            if (getChunk(tileX) == index) {
+                chunk.parkedSprites.add(sprite);
+                removeSprite(sprite);
+            }
+        }
     }
 
 }
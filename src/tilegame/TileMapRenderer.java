@@ -1,9 +1,7 @@
  package tilegame;
 
 import java.awt.*;
-import java.util.Iterator;
-import graphics.Sprite;
-import tilegame.sprites.Creature;
+import graphics.TextureAtlas;
 
 /**
     The TileMapRenderer class draws a TileMap on the screen.
@@ -14,6 +12,15 @@ import tilegame.sprites.Creature;
     the tile map, the background image will appear to move
     slowly, creating a parallax background effect.
 
+    Sprites are drawn from a WorldSnapshot, so a frame can be
+    drawn while the next simulation step is running.
+
+    The tiles are drawn from a TileBlockCache, in blocks of 16x16
+    tiles, unless the cache is turned off.
+
+    Images that are regions of an added TextureAtlas are drawn
+    straight from the atlas sheet.
+
     Also, three static methods are provided to convert pixels
     to tile positions, and vice-versa.
 
@@ -26,7 +33,15 @@ public class TileMapRenderer {
     // Math.pow(2, TILE_SIZE_BITS) == TILE_SIZE
     private static final int TILE_SIZE_BITS = 5;
 
-    private Image background;
+    private volatile Image background;
+    // pre-drawn blocks of tiles, or null to draw each tile
+    private TileBlockCache tileCache = new TileBlockCache();
+
+    // used when drawing a TileMap directly
+    private WorldSnapshot snapshot = new WorldSnapshot();
+
+    // replaced, not changed, so it can be read while drawing
+    private volatile TextureAtlas[] atlases = new TextureAtlas[0];
 
     public static int pixelsToTiles(float pixels) {
         return pixelsToTiles(Math.round(pixels));
@@ -55,18 +70,130 @@ public class TileMapRenderer {
         this.background = background;
     }
 
-    public void draw(Graphics2D g, TileMap map,
-        int screenWidth, int screenHeight)
+    public Image getBackground() {
+        return background;
+    }
+
+    /**
+        Gets the x position on the screen of a parallax background
+        image, which scrolls slower than the map.
+    */
+    public static int getBackgroundX(int offsetX, int screenWidth,
+        int mapWidth, int backgroundWidth)
+    {
+        return offsetX * (screenWidth - backgroundWidth) /
+            (screenWidth - mapWidth);
+    }
+
+    /**
+        Adds a TextureAtlas whose regions are drawn from its
+        sheet.
+    */
+    public synchronized void addAtlas(TextureAtlas atlas) {
+        for (int i=0; i<atlases.length; i++) {
+            if (atlases[i] == atlas) {
+                return;
+            }
+        }
+        TextureAtlas[] newAtlases = new TextureAtlas[atlases.length + 1];
+        System.arraycopy(atlases, 0, newAtlases, 0, atlases.length);
+        newAtlases[atlases.length] = atlas;
+        atlases = newAtlases;
+    }
+
+    public synchronized void removeAtlas(TextureAtlas atlas) {
+        for (int i=0; i<atlases.length; i++) {
+            if (atlases[i] == atlas) {
+                TextureAtlas[] newAtlases =
+                    new TextureAtlas[atlases.length - 1];
+                System.arraycopy(atlases, 0, newAtlases, 0, i);
+                System.arraycopy(atlases, i + 1, newAtlases, i,
+                    newAtlases.length - i);
+                atlases = newAtlases;
+                return;
+            }
+        }
+    }
+
+    /**
+        Draws an image, from the sheet of the atlas it belongs to
+        if there is one.
+    */
+    protected void drawImage(Graphics2D g, Image image, int x, int y) {
+        TextureAtlas[] atlases = this.atlases;
+        for (int i=0; i<atlases.length; i++) {
+            if (atlases[i].draw(g, image, x, y)) {
+                return;
+            }
+        }
+        g.drawImage(image, x, y, null);
+    }
+
+    /**
+        Sets whether tiles are drawn from pre-drawn blocks (the
+        default) or one at a time.
+    */
+    public void setTileCacheEnabled(boolean enabled) {
+        if (enabled && tileCache == null) {
+            tileCache = new TileBlockCache();
+        }
+        else if (!enabled && tileCache != null) {
+            tileCache.clear();
+            tileCache = null;
+        }
+    }
+
+    /**
+        Gets the x offset of the map on the screen when the
+        camera follows a player at the specified position.
+    */
+    public static int getOffsetX(TileMap map, float playerX,
+        int screenWidth)
     {
-        Sprite player = map.getPlayer();
         int mapWidth = tilesToPixels(map.getWidth());
 
         // get the scrolling position of the map
         // based on player's position
         int offsetX = screenWidth / 2 -
-            Math.round(player.getX()) - TILE_SIZE;
+            Math.round(playerX) - TILE_SIZE;
         offsetX = Math.min(offsetX, 0);
         offsetX = Math.max(offsetX, screenWidth - mapWidth);
+        return offsetX;
+    }
+
+    public void draw(Graphics2D g, TileMap map,
+        int screenWidth, int screenHeight)
+    {
+        draw(g, map, screenWidth, screenHeight, 1);
+    }
+
+    /**
+        Draws the map with sprites placed alpha (0 to 1) of the
+        way between their previous and current positions.
+    */
+    public void draw(Graphics2D g, TileMap map,
+        int screenWidth, int screenHeight, float alpha)
+    {
+        snapshot.capture(map, screenWidth, screenHeight);
+        draw(g, snapshot, screenWidth, screenHeight, alpha);
+    }
+
+    /**
+        Draws a WorldSnapshot, with sprites placed alpha (0 to 1)
+        of the way between their previous and current positions.
+    */
+    public void draw(Graphics2D g, WorldSnapshot snapshot,
+        int screenWidth, int screenHeight, float alpha)
+    {
+        TileMap map = snapshot.getMap();
+        if (map == null) {
+            return;
+        }
+
+        // the player is the first sprite in the snapshot
+        float playerX = snapshot.getX(0, alpha);
+        int mapWidth = tilesToPixels(map.getWidth());
+        int offsetX = getOffsetX(map, playerX, screenWidth);
 
         // get the y offset to draw all sprites and tiles
         int offsetY = screenHeight -
@@ -82,51 +209,47 @@ public class TileMapRenderer {
 
         // draw parallax background image
         if (background != null) {
-            int x = offsetX *
-                (screenWidth - background.getWidth(null)) /
-                (screenWidth - mapWidth);
+            int x = getBackgroundX(offsetX, screenWidth, mapWidth,
+                background.getWidth(null));
             int y = screenHeight - background.getHeight(null);
 
             g.drawImage(background, x, y, null);
         }
 
         // draw the visible tiles
+        if (tileCache != null) {
+            tileCache.draw(g, map, offsetX, offsetY,
+                screenWidth, screenHeight);
+        }
+        else {
+            drawTiles(g, map, offsetX, offsetY, screenWidth);
+        }
+
+        // draw player and sprites
+        for (int i=0; i<snapshot.getCount(); i++) {
+            int x = Math.round(snapshot.getX(i, alpha)) + offsetX;
+            int y = Math.round(snapshot.getY(i, alpha)) + offsetY;
+            drawImage(g, snapshot.getImage(i), x, y);
+        }
+    }
+
+    private void drawTiles(Graphics2D g, TileMap map, int offsetX,
+        int offsetY, int screenWidth)
+    {
         int firstTileX = pixelsToTiles(-offsetX);
         int lastTileX = firstTileX +
             pixelsToTiles(screenWidth) + 1;
+        Image[] palette = map.getPalette();
         for (int y=0; y<map.getHeight(); y++) {
             for (int x=firstTileX; x <= lastTileX; x++) {
-                Image image = map.getTile(x, y);
+                Image image = palette[map.getTileId(x, y)];
                 if (image != null) {
-                    g.drawImage(image,
+                    drawImage(g, image,
                         tilesToPixels(x) + offsetX,
-                        tilesToPixels(y) + offsetY,
-                        null);
+                        tilesToPixels(y) + offsetY);
                 }
             }
         }
-
-        // draw player
-        g.drawImage(player.getImage(),
-            Math.round(player.getX()) + offsetX,
-            Math.round(player.getY()) + offsetY,
-            null);
-
-        // draw sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite)i.next();
-            int x = Math.round(sprite.getX()) + offsetX;
-            int y = Math.round(sprite.getY()) + offsetY;
-            g.drawImage(sprite.getImage(), x, y, null);
-
-            // wake up the creature when it's on screen
-            if (sprite instanceof Creature &&
-                x >= 0 && x < screenWidth)
-            {
-                ((Creature)sprite).wakeUp();
-            }
-        }
     }
 
 }
@@ -0,0 +1,169 @@
+package tilegame;
+
+import java.awt.Image;
+import java.util.ArrayList;
+
+import graphics.Sprite;
+
+/**
+    A WorldSnapshot holds everything the TileMapRenderer needs to
+    draw a frame: the TileMap (for its tiles), and the image and
+    position of every Sprite, taken at the end of a simulation
+    step. Since the renderer only reads the snapshot, a frame can
+    be drawn on one thread while the next step is simulated on
+    another.
+    <p>The player is always the first Sprite in the snapshot.
+    Both the current and the previous position of every Sprite
+    are kept, so drawing can be interpolated between the two.
+    The arrays grow as needed, and are reused between snapshots.
+    <p>When the screen size is given, only the Sprites on (or near)
+    the screen are captured, found with the map's SpriteGrid, so
+    the cost of a frame doesn't depend on the size of the map.
+*/
+public class WorldSnapshot {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // distance off the screen, in pixels, that Sprites are still
+    // captured, since the camera may move a little while the
+    // snapshot is drawn with interpolation
+    private static final int CULL_MARGIN = 64;
+
+    private TileMap map;
+    // ResourceManager.getImageGeneration() when captured
+    private int imageGeneration;
+    private int count;
+    private Image[] images;
+    private float[] x;
+    private float[] y;
+    private float[] lastX;
+    private float[] lastY;
+    private ArrayList<Sprite> visible = new ArrayList<Sprite>();
+
+    public WorldSnapshot() {
+        images = new Image[INITIAL_CAPACITY];
+        x = new float[INITIAL_CAPACITY];
+        y = new float[INITIAL_CAPACITY];
+        lastX = new float[INITIAL_CAPACITY];
+        lastY = new float[INITIAL_CAPACITY];
+    }
+
+    /**
+        Takes a snapshot of the specified map and the Sprites that
+        are on a screen of the specified size, with the camera
+        following the player.
+    */
+    public void capture(TileMap map, int screenWidth,
+        int screenHeight)
+    {
+        this.map = map;
+        count = 0;
+        if (map == null) {
+            return;
+        }
+        Sprite player = map.getPlayer();
+        add(player);
+
+        int offsetX = TileMapRenderer.getOffsetX(map, player.getX(),
+            screenWidth);
+        int offsetY = screenHeight -
+            TileMapRenderer.tilesToPixels(map.getHeight());
+        map.getSprites(-offsetX - CULL_MARGIN, -offsetY - CULL_MARGIN,
+            screenWidth + 2 * CULL_MARGIN,
+            screenHeight + 2 * CULL_MARGIN, visible);
+        for (int i=0; i<visible.size(); i++) {
+            add(visible.get(i));
+        }
+        visible.clear();
+    }
+
+    private void add(Sprite sprite) {
+        if (count == images.length) {
+            grow();
+        }
+        images[count] = sprite.getImage();
+        x[count] = sprite.getX();
+        y[count] = sprite.getY();
+        lastX[count] = sprite.getInterpolatedX(0);
+        lastY[count] = sprite.getInterpolatedY(0);
+        count++;
+    }
+
+    private void grow() {
+        int capacity = images.length * 2;
+        Image[] newImages = new Image[capacity];
+        System.arraycopy(images, 0, newImages, 0, count);
+        images = newImages;
+        x = copyOf(x, capacity);
+        y = copyOf(y, capacity);
+        lastX = copyOf(lastX, capacity);
+        lastY = copyOf(lastY, capacity);
+    }
+
+    private float[] copyOf(float[] array, int capacity) {
+        float[] newArray = new float[capacity];
+        System.arraycopy(array, 0, newArray, 0, count);
+        return newArray;
+    }
+
+    /**
+        Gets the map, or null if nothing was captured yet.
+    */
+    public TileMap getMap() {
+        return map;
+    }
+
+    /**
+        Gets the number of Sprites, including the player.
+    */
+    public int getCount() {
+        return count;
+    }
+
+    public Image getImage(int i) {
+        return images[i];
+    }
+
+    /**
+        Sets the image generation of the ResourceManager the Sprite
+        images come from. Set it before capturing.
+    */
+    public void setImageGeneration(int imageGeneration) {
+        this.imageGeneration = imageGeneration;
+    }
+
+    public int getImageGeneration() {
+        return imageGeneration;
+    }
+
+    /**
+        Replaces the Sprite images with their current versions if
+        they were captured before the ResourceManager converted its
+        images for a new display.
+    */
+    public void convertImages(ResourceManager resourceManager) {
+        int generation = resourceManager.getImageGeneration();
+        if (imageGeneration != generation) {
+            for (int i=0; i<count; i++) {
+                images[i] = resourceManager.convertImage(images[i]);
+            }
+            imageGeneration = generation;
+        }
+    }
+
+    /**
+        Gets the x position of a Sprite, alpha (0 to 1) of the
+        way between its previous and current position.
+    */
+    public float getX(int i, float alpha) {
+        return lastX[i] + (x[i] - lastX[i]) * alpha;
+    }
+
+    /**
+        Gets the y position of a Sprite, alpha (0 to 1) of the
+        way between its previous and current position.
+    */
+    public float getY(int i, float alpha) {
+        return lastY[i] + (y[i] - lastY[i]) * alpha;
+    }
+}
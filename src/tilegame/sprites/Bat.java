@@ -14,6 +14,13 @@ public class Bat extends Creature {
     }
 
 
+    protected Creature newInstance(Animation left, Animation right,
+        Animation deadLeft, Animation deadRight)
+    {
+        return new Bat(left, right, deadLeft, deadRight);
+    }
+
+
     public float getMaxSpeed() {
         return 0.2f;
     }
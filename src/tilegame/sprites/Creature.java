@@ -1,8 +1,5 @@
 package tilegame.sprites;
 
-import java.lang.reflect.Constructor;
-
-
 import graphics.*;
 
 
@@ -40,21 +37,41 @@ public abstract class Creature extends Sprite {
 
 
     public Object clone() {
-        // use reflection to create the correct subclass
-        Constructor constructor = getClass().getConstructors()[0];
-        try {
-            return constructor.newInstance(new Object[] {
-                (Animation)left.clone(),
-                (Animation)right.clone(),
-                (Animation)deadLeft.clone(),
-                (Animation)deadRight.clone()
-            });
-        }
-        catch (Exception ex) {
-            // should never happen
-            ex.printStackTrace();
-            return null;
-        }
+        return newInstance(
+            (Animation)left.clone(),
+            (Animation)right.clone(),
+            (Animation)deadLeft.clone(),
+            (Animation)deadRight.clone());
+    }
+
+    /**
+        Creates a new Creature of the same class with the
+        specified Animations. Used by clone().
+    */
+    protected abstract Creature newInstance(Animation left,
+        Animation right, Animation deadLeft, Animation deadRight);
+
+    public void reset() {
+        super.reset();
+        state = STATE_NORMAL;
+        stateTime = 0;
+        anim = right;
+        left.start();
+        right.start();
+        deadLeft.start();
+        deadRight.start();
+    }
+
+    public int getMaxWidth() {
+        return Math.max(
+            Math.max(left.getMaxWidth(), right.getMaxWidth()),
+            Math.max(deadLeft.getMaxWidth(), deadRight.getMaxWidth()));
+    }
+
+    public int getMaxHeight() {
+        return Math.max(
+            Math.max(left.getMaxHeight(), right.getMaxHeight()),
+            Math.max(deadLeft.getMaxHeight(), deadRight.getMaxHeight()));
     }
 
     public float getMaxSpeed() {
@@ -79,6 +96,8 @@ public abstract class Creature extends Sprite {
                 setVelocityX(0);
                 setVelocityY(0);
             }
+            // isFlying() may depend on the state
+            updateBodyFlags();
         }
     }
 
@@ -89,6 +108,10 @@ public abstract class Creature extends Sprite {
     public boolean isFlying() {
         return false;
     }
+
+    public int getBodyFlags() {
+        return isFlying() ? 0 : BodyStore.FLAG_GRAVITY;
+    }
        
     public void collideHorizontal() {
         setVelocityX(-getVelocityX());
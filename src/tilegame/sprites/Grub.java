@@ -14,6 +14,13 @@ public class Grub extends Creature {
     }
 
 
+    protected Creature newInstance(Animation left, Animation right,
+        Animation deadLeft, Animation deadRight)
+    {
+        return new Grub(left, right, deadLeft, deadRight);
+    }
+
+
     public float getMaxSpeed() {
         return 0.15f;
     }
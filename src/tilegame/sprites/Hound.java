@@ -14,6 +14,13 @@ public class Hound extends Creature {
     }
 
 
+    protected Creature newInstance(Animation left, Animation right,
+        Animation deadLeft, Animation deadRight)
+    {
+        return new Hound(left, right, deadLeft, deadRight);
+    }
+
+
     public float getMaxSpeed() {
         return 0.09f;
     }
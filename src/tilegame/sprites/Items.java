@@ -1,6 +1,5 @@
 package tilegame.sprites;
 
-import java.lang.reflect.Constructor;
 import graphics.*;
 
 /**
@@ -14,28 +13,33 @@ public abstract class Items extends Sprite {
 
 
     public Object clone() {
-        // use reflection to create the correct subclass
-        Constructor constructor = getClass().getConstructors()[0];
-        try {
-            return constructor.newInstance(
-                new Object[] {(Animation)anim.clone()});
-        }
-        catch (Exception ex) {
-            ex.printStackTrace();
-            return null;
-        }
+        return newInstance((Animation)anim.clone());
     }
 
+    /**
+        Creates a new Items of the same class with the specified
+        Animation. Used by clone().
+    */
+    protected abstract Items newInstance(Animation anim);
+
     public static class Coin extends Items {
         public Coin(Animation anim) {
             super(anim);
         }
+
+        protected Items newInstance(Animation anim) {
+            return new Coin(anim);
+        }
     }
 
     public static class Door extends Items {
         public Door(Animation anim) {
             super(anim);
         }
+
+        protected Items newInstance(Animation anim) {
+            return new Door(anim);
+        }
     }
 
 }
@@ -17,6 +17,13 @@ public class Player extends Creature {
     {
         super(left, right, deadLeft, deadRight);
     }
+
+
+    protected Creature newInstance(Animation left, Animation right,
+        Animation deadLeft, Animation deadRight)
+    {
+        return new Player(left, right, deadLeft, deadRight);
+    }
     
         
     public void collideHorizontal() {
@@ -0,0 +1,105 @@
+package util;
+
+/**
+    A LatencyHistogram counts durations in buckets that grow
+    exponentially, with eight linear sub-buckets per power of two,
+    so any recorded value is reported within 12.5% of its real
+    value. Recording never allocates, so it's cheap enough to call
+    several times per frame.
+    <p>Values are recorded in nanoseconds and stored with
+    microsecond resolution. Recording is meant to be done from one
+    thread; other threads may read the values at any time, and may
+    see a value that is off by the last few recordings.
+*/
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS =
+        (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[NUM_BUCKETS];
+    private volatile long totalCount;
+    private volatile long max;
+
+    /**
+        Records a duration, in nanoseconds.
+    */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts[getBucket(micros)]++;
+        if (micros > max) {
+            max = micros;
+        }
+        totalCount++;
+    }
+
+    /**
+        Gets the number of recorded values.
+    */
+    public long getCount() {
+        return totalCount;
+    }
+
+    /**
+        Gets the largest recorded value, in microseconds.
+    */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+        Gets the value, in microseconds, that the specified
+        percentage (0 to 100) of the recorded values are at or
+        below.
+    */
+    public long getPercentile(double percent) {
+        long count = totalCount;
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1,
+            (long)Math.ceil(count * percent / 100));
+        long seen = 0;
+        for (int i=0; i<NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(getBucketValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+        Clears all recorded values.
+    */
+    public void reset() {
+        for (int i=0; i<NUM_BUCKETS; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+        max = 0;
+    }
+
+    private static int getBucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int topBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = topBit - SUB_BUCKET_BITS;
+        int subBucket = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+        return ((shift + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    /**
+        Gets the highest value that falls in a bucket.
+    */
+    private static long getBucketValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >> SUB_BUCKET_BITS) - 1;
+        long subBucket = bucket & (SUB_BUCKETS - 1);
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,50 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+    A LoadingProgress counts the tasks of a loading job that have
+    been done, out of the ones known so far. Tasks can be added
+    and finished from any thread, and the progress can be read at
+    any time, for example by a loading screen.
+    <p>The total can grow while loading, as the loader finds out
+    how much work is left, so the progress may go backwards a
+    little.
+*/
+public class LoadingProgress {
+
+    private AtomicInteger total = new AtomicInteger();
+    private AtomicInteger done = new AtomicInteger();
+
+    /**
+        Adds the specified number of tasks to the total.
+    */
+    public void addTasks(int count) {
+        total.addAndGet(count);
+    }
+
+    /**
+        Marks one task as done.
+    */
+    public void taskDone() {
+        done.incrementAndGet();
+    }
+
+    public int getTotal() {
+        return total.get();
+    }
+
+    public int getDone() {
+        return done.get();
+    }
+
+    /**
+        Gets the fraction (0 to 1) of the tasks that are done, or
+        0 if there are none yet.
+    */
+    public float getProgress() {
+        int total = this.total.get();
+        return (total == 0) ? 0 :
+            Math.min(1, (float)done.get() / total);
+    }
+}
@@ -0,0 +1,59 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+    A TripleBuffer passes data from one producer thread to one
+    consumer thread without locking. The producer fills the back
+    buffer and publishes it; the consumer always gets the most
+    recently published buffer. Neither thread ever waits for the
+    other, and a buffer is never used by both threads at once.
+*/
+public class TripleBuffer<T> {
+
+    // set in the middle index when it holds a newly published
+    // buffer the consumer hasn't seen yet
+    private static final int FRESH = 4;
+    private static final int INDEX_MASK = 3;
+
+    private final Object[] buffers;
+    private final AtomicInteger middle;
+    private int back;
+    private int front;
+
+    public TripleBuffer(T first, T second, T third) {
+        buffers = new Object[] { first, second, third };
+        back = 0;
+        middle = new AtomicInteger(1);
+        front = 2;
+    }
+
+    /**
+        Gets the buffer the producer should fill.
+    */
+    @SuppressWarnings("unchecked")
+    public T getBack() {
+        return (T)buffers[back];
+    }
+
+    /**
+        Publishes the back buffer, and makes another buffer the
+        back buffer. Called by the producer.
+    */
+    public void publish() {
+        back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    /**
+        Gets the most recently published buffer. Called by the
+        consumer. The returned buffer stays valid until the next
+        call to this method.
+    */
+    @SuppressWarnings("unchecked")
+    public T getFront() {
+        if ((middle.get() & FRESH) != 0) {
+            front = middle.getAndSet(front) & INDEX_MASK;
+        }
+        return (T)buffers[front];
+    }
+}